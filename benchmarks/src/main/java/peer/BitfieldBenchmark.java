@@ -0,0 +1,65 @@
+package peer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interest computation between our bitfield and a remote's: the checks run on every
+ * BITFIELD and HAVE, and the bit updates a HAVE causes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark {
+
+    @Param({"128", "10000", "1000000"})
+    int numPieces;
+
+    // Fraction of pieces we own; near 1.0 the remote rarely has anything we lack
+    @Param({"0.5", "0.99"})
+    double owned;
+
+    private AtomicBitfield local;
+    private AtomicBitfield remote;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        local = new AtomicBitfield(numPieces);
+        remote = new AtomicBitfield(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextDouble() < owned) local.set(i);
+            if (random.nextBoolean()) remote.set(i);
+        }
+    }
+
+    @Benchmark
+    public boolean interested() {
+        return local.hasMissingFrom(remote);
+    }
+
+    @Benchmark
+    public int missingCount() {
+        return local.countMissingFrom(remote);
+    }
+
+    // A HAVE for a piece the remote gains, undone so the bitfield stays the same
+    @Benchmark
+    public boolean haveUpdate() {
+        int i = next++ % numPieces;
+        boolean changed = remote.set(i);
+        if (changed) remote.clear(i);
+        return changed;
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return local.toBytes();
+    }
+}
@@ -0,0 +1,95 @@
+package peer;
+
+import org.openjdk.jmh.annotations.*;
+import utils.Logger;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One UploadManager.updatePreferredNeighbors round with hundreds of connected peers.
+ *
+ * Every round first credits each peer with a download amount, as its connection would
+ * during an unchoking interval, so rates differ and the preferred set changes between
+ * rounds. Messages go to no-op outbounds; the round's console output is discarded and its
+ * log lines go through the async logger.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChokingBenchmark {
+
+    private static final int BENCH_PEER_ID = 900002;
+
+    @Param({"100", "500"})
+    int peers;
+
+    private UploadManager uploadManager;
+    private long[] credits;
+    private int round;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Logger.startAsync(8192, true);
+
+        List<Integer> peerIds = new ArrayList<>();
+        for (int i = 1; i <= peers; i++) peerIds.add(i);
+        peerIds.add(BENCH_PEER_ID);
+        uploadManager = new UploadManager(peerIds, BENCH_PEER_ID, new UploadSlots(0));
+        Random random = new Random(42);
+        for (int i = 1; i <= peers; i++) {
+            uploadManager.addPeer(i, new NullOutbound());
+            // Most peers want data from us, as in a swarm that is still downloading
+            uploadManager.setInterested(i, random.nextInt(10) < 8);
+        }
+        credits = new long[peers * 16];
+        for (int i = 0; i < credits.length; i++) credits[i] = random.nextInt(1 << 20);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.shutdown();
+        new File("logs/log_peer_" + BENCH_PEER_ID + ".log").delete();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void preferredNeighborsRound() {
+        int base = (round++ & 15) * peers;
+        for (int i = 1; i <= peers; i++) {
+            uploadManager.recordDownload(i, credits[base + i - 1]);
+        }
+        uploadManager.updatePreferredNeighbors();
+    }
+
+    private static class NullOutbound implements Outbound {
+        @Override
+        public void send(byte[] message) {
+        }
+
+        @Override
+        public int sendBlock(PeerState source, int pieceIndex, int begin, int length) {
+            return 0;
+        }
+
+        @Override
+        public int cancelBlock(int pieceIndex, int begin) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Loopback proxy in front of one peer that shapes a single link of the simulated swarm.
+ *
+ * Every connection accepted on getAddress() is forwarded to the target. Each direction is
+ * delayed by latencyMillis and limited to bytesPerSecond (0 = unlimited). Bytes are read
+ * as soon as they arrive and released after the delay, so a link with latency still keeps
+ * a full window in flight, like a real path.
+ */
+class LinkShaper {
+
+    private static final int CHUNK = 16 * 1024;
+
+    private final InetSocketAddress target;
+    private final long bytesPerSecond;
+    private final long latencyNanos;
+    private final ServerSocket server;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    LinkShaper(InetSocketAddress target, long bytesPerSecond, long latencyMillis) throws IOException {
+        this.target = target;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyNanos = latencyMillis * 1_000_000L;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(this::acceptLoop, "shaper-accept-" + target.getPort());
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    void close() {
+        try {
+            server.close();
+        } catch (IOException ignore) {
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket client = server.accept();
+                Socket upstream = new Socket(target.getAddress(), target.getPort());
+                client.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(upstream);
+                pipe(client, upstream);
+                pipe(upstream, client);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    // A reader that timestamps chunks and a writer that releases them once due and within the rate
+    private void pipe(Socket from, Socket to) {
+        BlockingQueue<Chunk> delayLine = new LinkedBlockingQueue<>();
+        daemon(() -> {
+            byte[] buf = new byte[CHUNK];
+            try {
+                // Not closed at EOF: that would close the socket under the other direction
+                InputStream in = from.getInputStream();
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    delayLine.add(new Chunk(Arrays.copyOf(buf, n), System.nanoTime() + latencyNanos));
+                }
+            } catch (IOException ignore) {
+            }
+            delayLine.add(Chunk.EOF);
+        }, "shaper-read");
+        daemon(() -> {
+            long nextFree = Long.MIN_VALUE;
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = delayLine.take();
+                    if (chunk == Chunk.EOF) break;
+                    long due = chunk.dueNanos;
+                    if (bytesPerSecond > 0) {
+                        // The chunk goes out once the link is free, and occupies it for length / rate
+                        due = Math.max(due, nextFree);
+                        nextFree = due + chunk.data.length * 1_000_000_000L / bytesPerSecond;
+                    }
+                    sleepUntil(due);
+                    out.write(chunk.data);
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException ignore) {
+            }
+        }, "shaper-write");
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static class Chunk {
+        static final Chunk EOF = new Chunk(new byte[0], 0);
+
+        final byte[] data;
+        final long dueNanos;
+
+        Chunk(byte[] data, long dueNanos) {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+}
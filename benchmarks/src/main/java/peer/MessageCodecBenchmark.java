@@ -0,0 +1,109 @@
+package peer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageCodec on the transfer path: PIECE, REQUEST and HAVE encoded into a reused buffer
+ * and read back in place, plus BITFIELD, whose decode builds the AtomicBitfield as
+ * onBitfield does. Everything but bitfieldDecode should run without allocating.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"16384"})
+    int blockSize;
+
+    @Param({"1000", "100000"})
+    int numPieces;
+
+    private byte[] block;
+    private byte[] frame;
+    private ByteBuffer frameBuffer;
+    private ByteBuffer scratch;
+    private byte[] piecePayload;
+    private byte[] requestPayload;
+    private byte[] havePayload;
+    private byte[] bitfieldPayload;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        block = new byte[blockSize];
+        random.nextBytes(block);
+        frame = new byte[MessageCodec.PIECE_HEADER_LENGTH + blockSize];
+        frameBuffer = ByteBuffer.wrap(frame);
+        MessageCodec.encodePieceHeader(frameBuffer.clear(), 3, blockSize, blockSize);
+        System.arraycopy(block, 0, frame, MessageCodec.PIECE_HEADER_LENGTH, blockSize);
+        piecePayload = java.util.Arrays.copyOfRange(frame, MessageCodec.HEADER_LENGTH, frame.length);
+        requestPayload = new byte[] {0, 0, 1, 7, 0, 0, 64, 0, 0, 0, 64, 0};
+        havePayload = new byte[] {0, 0, 1, 7};
+        AtomicBitfield bitfield = new AtomicBitfield(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextBoolean()) bitfield.set(i);
+        }
+        bitfieldPayload = bitfield.toBytes();
+        scratch = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + bitfieldPayload.length);
+    }
+
+    // What NioEngine does: header and block written into one (normally pooled) frame
+    @Benchmark
+    public byte[] pieceEncode() {
+        MessageCodec.encodePieceHeader(frameBuffer.clear(), index++ & 1023, 0, blockSize);
+        System.arraycopy(block, 0, frame, MessageCodec.PIECE_HEADER_LENGTH, blockSize);
+        return frame;
+    }
+
+    // What ConnectionHandler does: fields read in place, the block copied straight out
+    @Benchmark
+    public byte[] pieceDecode() {
+        int begin = MessageCodec.begin(piecePayload, 0);
+        int pieceIndex = MessageCodec.pieceIndex(piecePayload, 0);
+        System.arraycopy(piecePayload, 8, frame, (pieceIndex + begin) & 1, piecePayload.length - 8);
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer requestEncode() {
+        MessageCodec.encodeRequest(scratch.clear(), index++, 0, blockSize);
+        return scratch;
+    }
+
+    @Benchmark
+    public int requestDecode() {
+        MessageCodec.checkPayload(MessageCodec.REQUEST, requestPayload.length);
+        return MessageCodec.pieceIndex(requestPayload, 0) + MessageCodec.begin(requestPayload, 0)
+                + MessageCodec.requestLength(requestPayload, 0);
+    }
+
+    @Benchmark
+    public ByteBuffer haveEncode() {
+        MessageCodec.encodeHave(scratch.clear(), index++);
+        return scratch;
+    }
+
+    @Benchmark
+    public int haveDecode() {
+        return MessageCodec.pieceIndex(havePayload, 0);
+    }
+
+    @Benchmark
+    public ByteBuffer bitfieldEncode() {
+        MessageCodec.encodeBitfield(scratch.clear(), bitfieldPayload);
+        return scratch;
+    }
+
+    @Benchmark
+    public AtomicBitfield bitfieldDecode() {
+        return MessageCodec.decodeBitfield(bitfieldPayload, 0, bitfieldPayload.length, numPieces);
+    }
+}
@@ -0,0 +1,87 @@
+package peer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerState.storePiece and getPieceData across piece sizes, against a scratch file under
+ * peer_&lt;BENCH_PEER_ID&gt;/ in the working directory (removed afterwards). Pieces are
+ * written and read round-robin over FILE_SIZE bytes, so most accesses hit the page cache.
+ * writeRun is the disk writer's path: RUN consecutive pieces in one gathering write, scored
+ * per piece so it compares directly with storePiece.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceStorageBenchmark {
+
+    static final int BENCH_PEER_ID = 900001;
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+    private static final int RUN = 8;
+
+    @Param({"16384", "262144", "1048576"})
+    int pieceSize;
+
+    private PeerState peerState;
+    private byte[] piece;
+    private int numPieces;
+    private int next;
+    private PieceStore store;
+    private final ByteBuffer[] run = new ByteBuffer[RUN];
+
+    @Setup
+    public void setUp() {
+        numPieces = (int) (FILE_SIZE / pieceSize);
+        peerState = new PeerState(numPieces, false, BENCH_PEER_ID, pieceSize, "storage.bin", FILE_SIZE);
+        piece = new byte[pieceSize];
+        new Random(42).nextBytes(piece);
+        // Fill the file once so reads never see a short piece
+        for (int i = 0; i < numPieces; i++) peerState.storePiece(i, piece, pieceSize);
+        try {
+            store = new PieceStore(new File("peer_" + BENCH_PEER_ID, "storage.bin").getPath(), pieceSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < RUN; i++) run[i] = ByteBuffer.wrap(piece);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+        peerState.close();
+        deleteRecursively(new File("peer_" + BENCH_PEER_ID));
+    }
+
+    @Benchmark
+    public void storePiece() {
+        peerState.storePiece(next++ % numPieces, piece, pieceSize);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RUN)
+    public void writeRun() throws IOException {
+        for (ByteBuffer buffer : run) buffer.clear();
+        store.writeRun((next++ % (numPieces / RUN)) * RUN, run);
+    }
+
+    @Benchmark
+    public byte[] getPieceData() {
+        return peerState.getPieceData(next++ % numPieces);
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
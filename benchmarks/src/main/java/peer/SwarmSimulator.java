@@ -0,0 +1,270 @@
+package peer;
+
+import utils.ConfigReader;
+import utils.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a whole swarm inside one JVM on loopback and reports how fast it completes.
+ *
+ * Generates Common.cfg and PeerInfo.cfg in a temp directory, writes a random file for the
+ * seeders, starts every peer as its own PeerProcess (peer i connects to the peers started
+ * before it, as separate processes would) and waits until every leecher has the file.
+ * With --rate or --latency-ms each connection runs through a LinkShaper. Reports
+ * time-to-first-piece and completion time per leecher, aggregate throughput and piece
+ * latency percentiles, then shuts every peer down and removes the directory.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar peer.SwarmSimulator [--option value]...
+ *   --peers 5  --seeders 1  --file-size 33554432  --piece-size 262144  --block-size 16384
+ *   --rate 0 (bytes/s per link direction, 0 = unlimited)  --latency-ms 0
+ *   --engine blocking|nio  --thread-mode platform|virtual  --max-outstanding 5
+ *   --timeout 300 (seconds)  --keep (leave the directory for inspection)
+ */
+public class SwarmSimulator {
+
+    private static final int FIRST_PEER_ID = 1001;
+
+    private final Map<String, String> options;
+    private final int numPeers;
+    private final int numSeeders;
+    private final long fileSize;
+    private final int pieceSize;
+    private final long rate;
+    private final long latencyMillis;
+
+    // Per-peer results, filled in by the piece listeners
+    private final long[] firstPieceNanos;
+    private final long[] completeNanos;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final Queue<Long> pieceLatencies = new ConcurrentLinkedQueue<>();
+
+    SwarmSimulator(Map<String, String> options) {
+        this.options = options;
+        this.numPeers = Integer.parseInt(options.getOrDefault("peers", "5"));
+        this.numSeeders = Integer.parseInt(options.getOrDefault("seeders", "1"));
+        this.fileSize = Long.parseLong(options.getOrDefault("file-size", String.valueOf(32L * 1024 * 1024)));
+        this.pieceSize = Integer.parseInt(options.getOrDefault("piece-size", "262144"));
+        this.rate = Long.parseLong(options.getOrDefault("rate", "0"));
+        this.latencyMillis = Long.parseLong(options.getOrDefault("latency-ms", "0"));
+        this.firstPieceNanos = new long[numPeers];
+        this.completeNanos = new long[numPeers];
+        if (numSeeders < 1 || numSeeders >= numPeers) throw new IllegalArgumentException("Need at least one seeder and one leecher");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            String key = args[i].substring(2);
+            if (key.equals("keep")) {
+                options.put(key, "true");
+            } else {
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+                options.put(key, args[++i]);
+            }
+        }
+        new SwarmSimulator(options).run();
+    }
+
+    void run() throws Exception {
+        Path dir = Files.createTempDirectory("swarm-sim");
+        PrintStream stdout = System.out;
+        List<PeerProcess> processes = new ArrayList<>();
+        List<LinkShaper> shapers = new ArrayList<>();
+        PieceVerifier.Pool verifyPool = PieceVerifier.newPool(Runtime.getRuntime().availableProcessors());
+        boolean done = false;
+        long startNanos = 0;
+        long endNanos = 0;
+        try {
+            writeConfig(dir);
+            writeSeederFiles(dir);
+            Logger.setDirectory(dir.resolve("logs").toString());
+            Files.createDirectories(dir.resolve("logs"));
+            // The peers' console chatter goes to a file; the report goes to the real stdout
+            System.setOut(new PrintStream(new FileOutputStream(dir.resolve("peers.out").toFile()), true));
+
+            PieceManifest manifest = null;
+            Map<Integer, InetSocketAddress> listenAddresses = new HashMap<>();
+            CountDownLatch leechersDone = new CountDownLatch(numPeers - numSeeders);
+            startNanos = System.nanoTime();
+            for (int i = 0; i < numPeers; i++) {
+                int peerId = FIRST_PEER_ID + i;
+                ConfigReader cfg = new ConfigReader(dir.resolve("config/Common.cfg").toString(),
+                        dir.resolve("config/PeerInfo.cfg").toString(), peerId);
+                PeerState peerState = cfg.buildPeerState(dir.resolve("peer_" + peerId).toString());
+                if (manifest == null) {
+                    manifest = PieceManifest.generate(peerState, fileSize, cfg.getHashAlgorithm(), cfg.getVerifyThreads());
+                }
+                listenAddresses.put(peerId, cfg.getPeerAddresses().get(peerId));
+
+                // Connect to the peers that are already up, through a shaper per link if asked
+                Map<Integer, InetSocketAddress> connectTo = new LinkedHashMap<>();
+                for (int j = 0; j < i; j++) {
+                    InetSocketAddress address = listenAddresses.get(FIRST_PEER_ID + j);
+                    if (rate > 0 || latencyMillis > 0) {
+                        LinkShaper shaper = new LinkShaper(address, rate, latencyMillis);
+                        shapers.add(shaper);
+                        address = shaper.getAddress();
+                    }
+                    connectTo.put(FIRST_PEER_ID + j, address);
+                }
+
+                long infoHash = Swarm.infoHash(cfg.getFileName(), cfg.getFileSize(), cfg.getPieceSize());
+                Swarm swarm = new Swarm(infoHash, peerId, cfg.getKnownPeers(), connectTo, peerState,
+                        new PieceVerifier(manifest, verifyPool), cfg.getBlockSize(), cfg.getHaveBatchWindow(),
+                        new UploadSlots(cfg.getMaxUploadSlots()));
+                int slot = i;
+                swarm.setPieceListener((pieceIndex, length, latencyNanos) -> {
+                    long now = System.nanoTime();
+                    bytesDownloaded.addAndGet(length);
+                    pieceLatencies.add(latencyNanos);
+                    synchronized (this) {
+                        if (firstPieceNanos[slot] == 0) firstPieceNanos[slot] = now;
+                        if (completeNanos[slot] == 0 && peerState.isComplete()) {
+                            completeNanos[slot] = now;
+                            leechersDone.countDown();
+                        }
+                    }
+                });
+
+                PeerProcess process = new PeerProcess(peerId, cfg.getPort(), cfg.getMaxOutstandingRequests(), cfg.getNetworkEngine(),
+                        cfg.getNioThreads(), cfg.getThreadMode(), cfg.getMaxQueuedBytesPerPeer(), cfg.getCheckpointInterval());
+                process.addSwarm(swarm);
+                process.announceIfSeeder();
+                process.start();
+                processes.add(process);
+            }
+
+            long timeout = Long.parseLong(options.getOrDefault("timeout", "300"));
+            done = leechersDone.await(timeout, TimeUnit.SECONDS);
+            endNanos = System.nanoTime();
+        } finally {
+            for (PeerProcess process : processes) process.close();
+            for (LinkShaper shaper : shapers) shaper.close();
+            verifyPool.shutdownNow();
+            System.setOut(stdout);
+        }
+
+        report(done, startNanos, endNanos, dir);
+        if (options.containsKey("keep")) {
+            System.out.println("Files kept in " + dir);
+        } else {
+            deleteRecursively(dir.toFile());
+        }
+    }
+
+    private void writeConfig(Path dir) throws IOException {
+        Path config = Files.createDirectories(dir.resolve("config"));
+        try (PrintWriter common = new PrintWriter(config.resolve("Common.cfg").toFile())) {
+            common.println("NumberOfPreferredNeighbors 3");
+            common.println("UnchokingInterval 5");
+            common.println("OptimisticUnchokingInterval 10");
+            common.println("FileName sim.bin");
+            common.println("FileSize " + fileSize);
+            common.println("PieceSize " + pieceSize);
+            common.println("BlockSize " + options.getOrDefault("block-size", "16384"));
+            common.println("MaxOutstandingRequests " + options.getOrDefault("max-outstanding", "5"));
+            common.println("NetworkEngine " + options.getOrDefault("engine", "blocking"));
+            common.println("ThreadMode " + options.getOrDefault("thread-mode", "platform"));
+            common.println("CheckpointInterval 0");
+        }
+        try (PrintWriter peerInfo = new PrintWriter(config.resolve("PeerInfo.cfg").toFile())) {
+            for (int i = 0; i < numPeers; i++) {
+                peerInfo.println((FIRST_PEER_ID + i) + " localhost " + freePort() + " " + (i < numSeeders ? 1 : 0));
+            }
+        }
+    }
+
+    private void writeSeederFiles(Path dir) throws IOException {
+        Path first = Files.createDirectories(dir.resolve("peer_" + FIRST_PEER_ID)).resolve("sim.bin");
+        Random random = new Random(42);
+        byte[] chunk = new byte[1 << 20];
+        try (FileOutputStream out = new FileOutputStream(first.toFile())) {
+            for (long written = 0; written < fileSize; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+            }
+        }
+        for (int i = 1; i < numSeeders; i++) {
+            Path copy = Files.createDirectories(dir.resolve("peer_" + (FIRST_PEER_ID + i))).resolve("sim.bin");
+            Files.copy(first, copy, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void report(boolean done, long startNanos, long endNanos, Path dir) throws IOException {
+        String links = rate > 0 || latencyMillis > 0
+                ? (rate > 0 ? mb(rate) + "/s" : "unlimited") + ", " + latencyMillis + " ms latency"
+                : "unshaped";
+        System.out.printf("Swarm: %d peers (%d seeders), %s file in %d pieces of %s, %s engine, links %s%n",
+                numPeers, numSeeders, mb(fileSize), (fileSize + pieceSize - 1) / pieceSize, kb(pieceSize),
+                options.getOrDefault("engine", "blocking"), links);
+        if (!done) System.out.println("TIMED OUT before every leecher finished");
+
+        System.out.printf("%-6s %12s %12s %8s%n", "Peer", "First piece", "Complete", "Match");
+        byte[] original = Files.readAllBytes(dir.resolve("peer_" + FIRST_PEER_ID + "/sim.bin"));
+        for (int i = numSeeders; i < numPeers; i++) {
+            int peerId = FIRST_PEER_ID + i;
+            boolean match = Arrays.equals(original, Files.readAllBytes(dir.resolve("peer_" + peerId + "/sim.bin")));
+            System.out.printf("%-6d %12s %12s %8s%n", peerId, seconds(firstPieceNanos[i], startNanos),
+                    seconds(completeNanos[i], startNanos), match ? "yes" : "NO");
+        }
+
+        double elapsed = (endNanos - startNanos) / 1e9;
+        System.out.printf("Aggregate: %s downloaded in %.2f s = %s/s%n",
+                mb(bytesDownloaded.get()), elapsed, mb((long) (bytesDownloaded.get() / elapsed)));
+
+        long[] latencies = pieceLatencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (latencies.length > 0) {
+            System.out.printf("Piece latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms (%d pieces)%n",
+                    percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                    latencies[latencies.length - 1] / 1e6, latencies.length);
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String seconds(long nanos, long startNanos) {
+        return nanos == 0 ? "-" : String.format("%.3f s", (nanos - startNanos) / 1e9);
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String kb(long bytes) {
+        return String.format("%d KB", bytes / 1024);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,184 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe piece bitfield packed into 64-bit words.
+ *
+ * Bits are laid out like the wire format (piece 0 is the most significant bit of the
+ * first word), so encoding is a big-endian dump of the words. Bits are set and cleared
+ * with CAS, and a separate counter tracks how many are set, so completion checks are O(1)
+ * and comparisons with a remote bitfield run one word (64 pieces) at a time.
+ */
+public class AtomicBitfield {
+
+    private final int numPieces;
+    private final AtomicLongArray words;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public AtomicBitfield(int numPieces) {
+        this.numPieces = numPieces;
+        this.words = new AtomicLongArray((numPieces + 63) / 64);
+    }
+
+    // Decodes a wire bitfield; spare bits past numPieces are ignored
+    public static AtomicBitfield fromBytes(byte[] bytes, int numPieces) {
+        return fromBytes(bytes, 0, bytes.length, numPieces);
+    }
+
+    // Same, reading length bytes at offset in place (a short bitfield reads as missing pieces)
+    public static AtomicBitfield fromBytes(byte[] bytes, int offset, int length, int numPieces) {
+        AtomicBitfield bitfield = new AtomicBitfield(numPieces);
+        int total = 0;
+        for (int w = 0; w < bitfield.words.length(); w++) {
+            long word = 0;
+            for (int i = 0; i < 8; i++) {
+                int at = w * 8 + i;
+                word = (word << 8) | (at < length ? bytes[offset + at] & 0xff : 0);
+            }
+            word &= bitfield.validMask(w);
+            bitfield.words.set(w, word);
+            total += Long.bitCount(word);
+        }
+        bitfield.count.set(total);
+        return bitfield;
+    }
+
+    public int size() {
+        return numPieces;
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & mask(index)) != 0;
+    }
+
+    // Returns true if this call changed the bit from 0 to 1
+    public boolean set(int index) {
+        int w = index >>> 6;
+        long bit = mask(index);
+        while (true) {
+            long old = words.get(w);
+            if ((old & bit) != 0) return false;
+            if (words.compareAndSet(w, old, old | bit)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // Returns true if this call changed the bit from 1 to 0
+    public boolean clear(int index) {
+        int w = index >>> 6;
+        long bit = mask(index);
+        while (true) {
+            long old = words.get(w);
+            if ((old & bit) == 0) return false;
+            if (words.compareAndSet(w, old, old & ~bit)) {
+                count.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public void setAll() {
+        for (int i = 0; i < numPieces; i++) set(i);
+    }
+
+    public int cardinality() {
+        return count.get();
+    }
+
+    public boolean isFull() {
+        return count.get() == numPieces;
+    }
+
+    // Index of the first set bit at or after fromIndex, or -1
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex >= numPieces) return -1;
+        int w = fromIndex >>> 6;
+        long word = words.get(w) & (-1L >>> (fromIndex & 63));
+        while (true) {
+            if (word != 0) return (w << 6) + Long.numberOfLeadingZeros(word);
+            if (++w >= words.length()) return -1;
+            word = words.get(w);
+        }
+    }
+
+    // Index of the first bit at or after fromIndex set in both this and other, or -1
+    public int nextSetBitIn(AtomicBitfield other, int fromIndex) {
+        if (fromIndex >= numPieces) return -1;
+        int w = fromIndex >>> 6;
+        long word = words.get(w) & other.words.get(w) & (-1L >>> (fromIndex & 63));
+        while (true) {
+            if (word != 0) return (w << 6) + Long.numberOfLeadingZeros(word);
+            if (++w >= words.length()) return -1;
+            word = words.get(w) & other.words.get(w);
+        }
+    }
+
+    // Index of the first clear bit at or after fromIndex, or -1
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex >= numPieces) return -1;
+        int w = fromIndex >>> 6;
+        long word = ~words.get(w) & (-1L >>> (fromIndex & 63));
+        while (true) {
+            if (word != 0) {
+                int index = (w << 6) + Long.numberOfLeadingZeros(word);
+                return index < numPieces ? index : -1;
+            }
+            if (++w >= words.length()) return -1;
+            word = ~words.get(w);
+        }
+    }
+
+    // Number of pieces the remote has that this bitfield lacks (word-wise AND-NOT)
+    public int countMissingFrom(AtomicBitfield remote) {
+        int missing = 0;
+        for (int w = 0; w < words.length(); w++) {
+            missing += Long.bitCount(remote.words.get(w) & ~words.get(w));
+        }
+        return missing;
+    }
+
+    // The pieces the remote has that this bitfield lacks, as a new bitfield
+    public AtomicBitfield missingFrom(AtomicBitfield remote) {
+        AtomicBitfield missing = new AtomicBitfield(numPieces);
+        int total = 0;
+        for (int w = 0; w < words.length(); w++) {
+            long word = remote.words.get(w) & ~words.get(w);
+            missing.words.set(w, word);
+            total += Long.bitCount(word);
+        }
+        missing.count.set(total);
+        return missing;
+    }
+
+    public boolean hasMissingFrom(AtomicBitfield remote) {
+        for (int w = 0; w < words.length(); w++) {
+            if ((remote.words.get(w) & ~words.get(w)) != 0) return true;
+        }
+        return false;
+    }
+
+    // Wire format: ceil(numPieces / 8) bytes, high bit first
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+        for (int w = 0; w < words.length(); w++) {
+            buffer.putLong(words.get(w));
+        }
+        return Arrays.copyOf(buffer.array(), (numPieces + 7) / 8);
+    }
+
+    private static long mask(int index) {
+        return 1L << (63 - (index & 63));
+    }
+
+    // Bits of word w that correspond to real pieces
+    private long validMask(int w) {
+        int bitsInWord = Math.min(64, numPieces - (w << 6));
+        return bitsInWord == 64 ? -1L : ~(-1L >>> bitsInWord);
+    }
+}
@@ -0,0 +1,85 @@
+package peer;
+
+import utils.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of byte arrays for the message and piece paths, so a busy peer does not produce
+ * block- and piece-sized garbage for every transfer.
+ *
+ * Arrays come in power-of-two size classes from MIN_SIZE to MAX_SIZE, so an acquired array
+ * is usually longer than asked for and callers carry the real length alongside it. Each
+ * class keeps up to MAX_BYTES_PER_CLASS of free arrays; anything beyond that, and requests
+ * above MAX_SIZE, are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final BufferPool SHARED = new BufferPool();
+
+    static {
+        Metrics.gauge("buffer_pool_hits", SHARED::getHits);
+        Metrics.gauge("buffer_pool_misses", SHARED::getMisses);
+    }
+
+    private static final int MIN_SHIFT = 6;                 // 64 bytes
+    private static final int MAX_SHIFT = 24;                // 16 MB
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+    private static final int MAX_SIZE = 1 << MAX_SHIFT;
+    private static final long MAX_BYTES_PER_CLASS = 8L * 1024 * 1024;
+
+    private final ArrayDeque<byte[]>[] free;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        free = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) free[i] = new ArrayDeque<>();
+    }
+
+    // An array of at least size bytes; its contents are undefined
+    public byte[] acquire(int size) {
+        if (size > MAX_SIZE) {
+            misses.increment();
+            return new byte[size];
+        }
+        int sizeClass = sizeClass(size);
+        ArrayDeque<byte[]> list = free[sizeClass];
+        byte[] buf;
+        synchronized (list) {
+            buf = list.pollLast();
+        }
+        if (buf != null) {
+            hits.increment();
+            return buf;
+        }
+        misses.increment();
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    // Returns an array from acquire(); the caller must not touch it afterwards
+    public void release(byte[] buf) {
+        int length = buf.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) return;
+        ArrayDeque<byte[]> list = free[Integer.numberOfTrailingZeros(length) - MIN_SHIFT];
+        long limit = Math.max(2, MAX_BYTES_PER_CLASS / length);
+        synchronized (list) {
+            if (list.size() < limit) list.addLast(buf);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
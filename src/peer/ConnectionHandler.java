@@ -1,35 +1,77 @@
 package peer;
 
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongFunction;
 import utils.Logger;
+import utils.Metrics;
 
 public class ConnectionHandler implements Runnable {
 
+    private static final int MAX_HASH_FAILURES = 3;
+    private static final Metrics.Counter CHOKES_RECEIVED = Metrics.counter("chokes_received");
+    private static final Metrics.Counter UNCHOKES_RECEIVED = Metrics.counter("unchokes_received");
+
     private Socket socket;
     private int selfPeerId;
     private int remotePeerId = -1;
+    private Swarm swarm;                        // null on an accepted socket until its handshake names one
+    private final LongFunction<Swarm> swarms;   // info-hash -> swarm hosted by this process
+    private int extensions;                     // handshake extensions both sides support
     private PeerState peerState;
     private UploadManager uploadManager;
-    private byte[] remoteBitfield = null;
-    private boolean completionChecked = false;
+    private PiecePicker piecePicker;
+    private PieceVerifier verifier;
+    private AtomicBitfield remoteBitfield = null;
     private boolean isInitiator;
-
-    public ConnectionHandler(Socket socket, int selfPeerId, PeerState peerState, UploadManager uploadManager, boolean isInitiator) {
+    private Outbound out;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final ReentrantLock windowLock = new ReentrantLock();
+    // Pieces the remote has and we lack, kept up to date on its HAVEs and our new pieces, so
+    // interest is known without rescanning; null until its bitfield arrives
+    private AtomicBitfield wanted;
+    private Boolean interestSent;                // last INTERESTED (true) / NOT_INTERESTED (false) sent
+    private final ReentrantLock interestLock = new ReentrantLock();
+    private volatile boolean chokedByRemote = true;
+    private final AtomicInteger hashFailures = new AtomicInteger();
+    private final int maxOutstandingRequests;
+    private final int maxQueuedBytes;
+    private final Executor writerExecutor; // runs the blocking engine's outbound writer
+    private Metrics.Counter bytesIn;        // PIECE payload bytes from / to this remote, set by the handshake
+    private Metrics.Counter bytesOut;
+    private final IntConsumer haveHandler = this::onHave;  // HAVE_BATCH indexes, bound once
+
+    // swarm is the one an outgoing connection is opened for, and null for an accepted one
+    public ConnectionHandler(Socket socket, int selfPeerId, Swarm swarm, LongFunction<Swarm> swarms, boolean isInitiator,
+                             int maxOutstandingRequests, int maxQueuedBytes, Executor writerExecutor) {
         this.socket = socket;
         this.selfPeerId = selfPeerId;
-        this.peerState = peerState;
-        this.uploadManager = uploadManager;
+        this.swarms = swarms;
+        if (swarm != null) bind(swarm);
         this.isInitiator = isInitiator;
+        this.maxOutstandingRequests = maxOutstandingRequests;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.writerExecutor = writerExecutor;
     }
 
     private int readFully(InputStream is, byte[] buffer) throws Exception {
+        return readFully(is, buffer, buffer.length);
+    }
+
+    private int readFully(InputStream is, byte[] buffer, int length) throws Exception {
         int bytesRead = 0;
-        while (bytesRead < buffer.length) {
-            int r = is.read(buffer, bytesRead, buffer.length - bytesRead);
+        while (bytesRead < length) {
+            int r = is.read(buffer, bytesRead, length - bytesRead);
             if (r == -1) return -1;
             bytesRead += r;
         }
@@ -38,226 +80,460 @@ public class ConnectionHandler implements Runnable {
 
     @Override
     public void run() {
-        try (InputStream is = socket.getInputStream(); OutputStream os = socket.getOutputStream()) {
+        // Every frame is read into this buffer, which only grows, so the loop allocates no payloads
+        byte[] frame = BufferPool.SHARED.acquire(64);
+        try (InputStream is = socket.getInputStream()) {
+            // Outgoing messages go through a queue drained by this connection's writer thread
+            OutboundQueue queue = new OutboundQueue(socket, maxQueuedBytes);
+            writerExecutor.execute(queue);
+
             // Handshake
-            byte[] hsBytes = new HandshakeMessage(selfPeerId).toBytes();
-            os.write(hsBytes);
-            os.flush();
+            sendHandshake(queue);
 
             byte[] hsBuf = new byte[HandshakeMessage.HANDSHAKE_LENGTH];
             if (readFully(is, hsBuf) != HandshakeMessage.HANDSHAKE_LENGTH)
                 throw new Exception("Failed handshake length");
-            HandshakeMessage hsIn = HandshakeMessage.fromBytes(hsBuf);
-            remotePeerId = hsIn.getPeerId();
-
-            if (isInitiator) {
-                Logger.log("Peer " + selfPeerId + " makes a connection to Peer " + remotePeerId + ".", selfPeerId);
-            }
-            else {
-                Logger.log("Peer " + selfPeerId + " is connected from Peer " + remotePeerId + ".", selfPeerId);
-            }
-
-            System.out.println("[Peer " + selfPeerId + "] Connected to peer " + remotePeerId);
-
-            // Exchange bitfield
-            byte[] myBitfield = peerState.getBitfieldBytes();
-            os.write(new BitfieldMessage(myBitfield).toBytes());
-            os.flush();
+            onHandshake(hsBuf);
 
             byte[] lenBuf = new byte[4];
             if (readFully(is, lenBuf) != 4) throw new Exception("Failed to read message length");
             int len = ByteBuffer.wrap(lenBuf).getInt();
+            if (len < 1 || len - 1 > maxPayloadLength(true)) throw new Exception("Invalid bitfield length " + len);
 
             byte[] typeBuf = new byte[1];
             if (readFully(is, typeBuf) != 1) throw new Exception("Failed to read message type");
-            if (typeBuf[0] != BitfieldMessage.TYPE)
-                throw new Exception("Expected bitfield");
             byte[] payload = new byte[len - 1];
             if (readFully(is, payload) != payload.length) throw new Exception("Failed to read bitfield payload");
-            BitfieldMessage remoteBitfieldMsg = BitfieldMessage.fromBytes(payload);
-
-            remoteBitfield = remoteBitfieldMsg.getBitfield();
-            System.out.println("[Peer " + selfPeerId + "] Received bitfield from " + remotePeerId);
-            Logger.log("Peer " + selfPeerId + " received bitfield from Peer " + remotePeerId, selfPeerId);
-
-            // Initial interest determination
-            updateInterest(os);
-
-            // Notify uploadManager
-            uploadManager.addPeer(remotePeerId, os);
-            if (peerState.isComplete()) {
-                // Telling other peers if it's already complete
-                os.write(new PeerCompletedMessage(selfPeerId).toBytes());
-                os.flush();
-                System.out.println("[Peer " + selfPeerId + "] Informed peer " + remotePeerId + " of seeder status.");
-            }
-
+            onBitfield(typeBuf[0], payload);
 
             // Main message loop
             while (true) {
                 if (readFully(is, lenBuf) != 4) break;
                 int msgLen = ByteBuffer.wrap(lenBuf).getInt();
+                if (msgLen < 1 || msgLen - 1 > maxPayloadLength(false)) throw new Exception("Invalid message length " + msgLen);
 
                 if (readFully(is, typeBuf) != 1) break;
                 byte msgType = typeBuf[0];
 
-                payload = new byte[msgLen - 1];
-                if (msgLen > 1) {
-                    if (readFully(is, payload) != payload.length) break;
+                int payloadLength = msgLen - 1;
+                if (payloadLength > frame.length) {
+                    BufferPool.SHARED.release(frame);
+                    frame = BufferPool.SHARED.acquire(payloadLength);
                 }
+                if (readFully(is, frame, payloadLength) != payloadLength) break;
 
-                boolean[] myPieces = peerState.getPieces();
-
-                switch (msgType) {
-                    case ChokeMessage.TYPE:
-                        uploadManager.setChoked(remotePeerId, true);
-                        Logger.log("Peer " + selfPeerId + " is choked by " + remotePeerId + ".", selfPeerId);
-                        break;
-
-                    case UnchokeMessage.TYPE:
-                        uploadManager.setChoked(remotePeerId, false);
-                        Logger.log("Peer " + selfPeerId + " is unchoked by " + remotePeerId + ".", selfPeerId);
-
-                        if (!completionChecked) {
-                            boolean[] myPieces2 = peerState.getPieces();
-                            for (int i = 0; i < myPieces2.length; i++) {
-                                boolean remoteHas = ((remoteBitfield[i / 8] >> (7 - (i % 8))) & 1) == 1;
-                                if (!myPieces2[i] && remoteHas) {
-                                    os.write(new RequestMessage(i).toBytes());
-                                    os.flush();
-                                    break;
-                                }
-                            }
-                        }
-                        break;
-
-                    case InterestedMessage.TYPE:
-                        uploadManager.setInterested(remotePeerId, true);
-                        Logger.log("Peer " + selfPeerId + " received the 'interested' message from " + remotePeerId + ".", selfPeerId);
-                        break;
-                    case NotInterestedMessage.TYPE:
-                        uploadManager.setInterested(remotePeerId, false);
-                        Logger.log("Peer " + selfPeerId + " received the 'not interested' message from " + remotePeerId + ".", selfPeerId);
-                        break;
-                    case RequestMessage.TYPE:
-                        if (!uploadManager.isChoked(remotePeerId)) {
-                            RequestMessage req = RequestMessage.fromBytes(payload);
-                            byte[] block = peerState.getPieceData(req.getPieceIndex());
-                            if (block != null) {
-                                os.write(new PieceMessage(req.getPieceIndex(), block).toBytes());
-                                os.flush();
-                            }
-                        }
-                        break;
-                    case PieceMessage.TYPE:
-                        PieceMessage pieceMsg = PieceMessage.fromBytes(payload);
-                        peerState.storePiece(pieceMsg.getPieceIndex(), pieceMsg.getBlock());
-                        uploadManager.broadcastHave(pieceMsg.getPieceIndex());
-                        Logger.log("Peer " + selfPeerId + " has downloaded the piece " + pieceMsg.getPieceIndex() + " from " + remotePeerId + ". Now the number of pieces it has is " + peerState.getNumberOfPiecesOwned() + ".", selfPeerId);
-
-                        boolean complete1 = peerState.isComplete();
-
-                        if (complete1 && !completionChecked) {
-                            try {
-                                completionChecked = true;
-                                os.write(new NotInterestedMessage().toBytes());
-                                os.flush();
-
-                                // uploadManager.updatePeerCompletion(selfPeerId, true);
-                                System.out.println("[Peer " + selfPeerId + "] Marking self complete and broadcasting...");
-                                Logger.log("Peer " + selfPeerId + " has downloaded the complete file.", selfPeerId);
-                                uploadManager.updatePeerCompletion(selfPeerId, true);
-                                uploadManager.broadcastPeerCompleted(selfPeerId);
-                                /*
-                                try {
-                                    Thread.sleep(1000); // 1 second
-                                } catch (InterruptedException ignore) {}
-                                */
-                            } catch (Exception e) {
-                                System.err.println("[Peer " + selfPeerId + "] Exception during completion: " + e.getMessage());
-                                e.printStackTrace();
-                            }
-                        } else if (!complete1) {
-                            boolean[] myPieces1 = peerState.getPieces();
-                            for (int i = 0; i < myPieces1.length; i++) {
-                                boolean remoteHas = ((remoteBitfield[i / 8] >> (7 - (i % 8))) & 1) == 1;
-                                if (!myPieces1[i] && remoteHas) {
-                                    os.write(new RequestMessage(i).toBytes());
-                                    os.flush();
-                                    break;
-                                }
-                            }
-                        }
-                        break;
-
-                    case HaveMessage.TYPE:
-                        HaveMessage recvHave = HaveMessage.fromBytes(payload);
-                        int haveIndex = recvHave.getPieceIndex();
-                        Logger.log("Peer " + selfPeerId + " received the 'have' message from " + remotePeerId + " for the piece " + haveIndex + ".", selfPeerId);
-
-                        if (remoteBitfield == null) {
-                            remoteBitfield = new byte[(peerState.getPieces().length + 7) / 8];
-                        }
-                        int byteIndex = haveIndex / 8;
-                        int bitIndex = 7 - (haveIndex % 8);
-                        remoteBitfield[byteIndex] |= (1 << bitIndex);
-
-                        updateInterest(os);
-                        break;
-                    default:
-                        break;
-
-                    case PeerCompletedMessage.TYPE:
-                        PeerCompletedMessage pcm = PeerCompletedMessage.fromBytes(payload);
-                        int completedPeerId = pcm.getPeerId();
-
-                        System.out.println("[Peer " + selfPeerId + "] Received PeerCompletedMessage: " + completedPeerId);
-                        //Logger.log("Received PeerCompletedMessage: " + completedPeerId,  selfPeerId);
-                        // System.out.println("[Peer " + selfPeerId + "] Peer completion map BEFORE: " + uploadManager.getPeerCompletionMap());
-                        uploadManager.updatePeerCompletion(completedPeerId, true);
-                        // System.out.println("[Peer " + selfPeerId + "] Peer completion map AFTER: " + uploadManager.getPeerCompletionMap());
-                        break;
-                }
+                onFrame(msgType, frame, 0, payloadLength);
+                // Stop reading while hashing is behind rather than queue more pieces
+                if (verifier != null) verifier.awaitRoom();
             }
         }
         catch (Exception e) {
-            String msg = e.getMessage() != null ? e.getMessage() : "";
-            // Only print unexpected errors, ignore normal socket closure/reset
-            if (!msg.contains("Socket closed") && !msg.contains("Connection reset")) {
-                System.err.println("[Peer " + selfPeerId + "] Exception: " + msg);
-                //Logger.log("Unexpected Exception: " + msg, selfPeerId);
-                e.printStackTrace();
-            }
+            onError(e);
         } finally {
-            try {
-                socket.close();
-            } catch (Exception ignore) {
+            close();
+            BufferPool.SHARED.release(frame);
+        }
+    }
+
+    // NioEngine pauses reads from this connection while true
+    public boolean isVerifierSaturated() {
+        return verifier != null && verifier.isSaturated();
+    }
+
+    // The methods below are driven either by run() (one blocking thread per socket)
+    // or by NioEngine, which frames messages itself and calls them from an event loop.
+
+    // An accepted connection answers only once the remote's handshake says which swarm it is for
+    public void sendHandshake(Outbound out) throws Exception {
+        this.out = out;
+        if (swarm != null) {
+            out.send(new HandshakeMessage(selfPeerId, swarm.getInfoHash(), HandshakeMessage.SUPPORTED_EXTENSIONS).toBytes());
+        }
+    }
+
+    public void onHandshake(byte[] hsBuf) throws Exception {
+        HandshakeMessage hsIn = HandshakeMessage.fromBytes(hsBuf);
+        if (swarm == null) {
+            Swarm target = swarms.apply(hsIn.getInfoHash());
+            if (target == null)
+                throw new Exception("No swarm for info-hash " + Long.toHexString(hsIn.getInfoHash()) + " from peer " + hsIn.getPeerId());
+            bind(target);
+            out.send(new HandshakeMessage(selfPeerId, swarm.getInfoHash(), HandshakeMessage.SUPPORTED_EXTENSIONS).toBytes());
+        } else if (hsIn.getInfoHash() != 0 && hsIn.getInfoHash() != swarm.getInfoHash()) {
+            throw new Exception("Peer " + hsIn.getPeerId() + " answered for a different swarm");
+        }
+        remotePeerId = hsIn.getPeerId();
+        extensions = hsIn.getExtensions() & HandshakeMessage.SUPPORTED_EXTENSIONS;
+        bytesIn = Metrics.counter("bytes_in.peer_" + remotePeerId);
+        bytesOut = Metrics.counter("bytes_out.peer_" + remotePeerId);
+
+        if (isInitiator) {
+            Logger.log("Peer " + selfPeerId + " makes a connection to Peer " + remotePeerId + ".", selfPeerId);
+        }
+        else {
+            Logger.log("Peer " + selfPeerId + " is connected from Peer " + remotePeerId + ".", selfPeerId);
+        }
+
+        System.out.println("[Peer " + selfPeerId + "] Connected to peer " + remotePeerId);
+
+        // Exchange bitfield, run-length encoded if the remote understands it and that is smaller
+        byte[] myBitfield = peerState.getBitfieldBytes();
+        byte[] compactBitfield = compactMessages() ? compactBitfieldFrame() : null;
+        if (compactBitfield != null && compactBitfield.length < MessageCodec.HEADER_LENGTH + myBitfield.length) {
+            out.send(compactBitfield);
+        } else {
+            ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + myBitfield.length);
+            MessageCodec.encodeBitfield(frame, myBitfield);
+            out.send(frame.array());
+        }
+    }
+
+    // Frames claiming a larger payload are refused before anything is allocated for them
+    public int maxPayloadLength(boolean firstMessage) {
+        return MessageCodec.maxPayload(peerState.getNumPieces(), peerState.getPieceSize(), firstMessage);
+    }
+
+    // The first message after the handshake must be the remote's bitfield
+    public void onBitfield(byte msgType, byte[] payload) throws Exception {
+        MessageCodec.checkPayload(msgType, payload.length);
+        if (msgType == MessageCodec.BITFIELD) {
+            remoteBitfield = MessageCodec.decodeBitfield(payload, 0, payload.length, peerState.getNumPieces());
+        } else if (msgType == MessageCodec.COMPACT_BITFIELD && compactMessages()) {
+            remoteBitfield = MessageCodec.decodeCompactBitfield(payload, 0, payload.length, peerState.getNumPieces());
+        } else {
+            throw new Exception("Expected bitfield");
+        }
+        piecePicker.addBitfield(remoteBitfield);
+        System.out.println("[Peer " + selfPeerId + "] Received bitfield from " + remotePeerId);
+        Logger.log("Peer " + selfPeerId + " received bitfield from Peer " + remotePeerId, selfPeerId);
+
+        // Registered first, so no piece we complete while wanted is built goes unnoticed
+        swarm.addConnection(this);
+        interestLock.lock();
+        try {
+            wanted = peerState.getPieces().missingFrom(remoteBitfield);
+            sendInterestIfChanged();
+        } finally {
+            interestLock.unlock();
+        }
+
+        // Notify uploadManager
+        uploadManager.addPeer(remotePeerId, out, compactMessages());
+        if (peerState.isComplete()) {
+            // Telling other peers if it's already complete
+            ByteBuffer frame = ByteBuffer.allocate(MessageCodec.PEER_COMPLETED_LENGTH);
+            MessageCodec.encodePeerCompleted(frame, selfPeerId);
+            out.send(frame.array());
+            System.out.println("[Peer " + selfPeerId + "] Informed peer " + remotePeerId + " of seeder status.");
+        }
+    }
+
+    // Entry point for every frame after the bitfield. The payload is length bytes of buf at
+    // offset and is only valid during the call; fields are read from it in place and PIECE
+    // blocks are copied straight into their reassembly buffer.
+    public void onFrame(byte msgType, byte[] buf, int offset, int length) throws Exception {
+        MessageCodec.checkPayload(msgType, length);
+        switch (msgType) {
+            case MessageCodec.PIECE:
+                onPiece(buf, offset, length);
+                break;
+
+            case MessageCodec.CHOKE:
+                Logger.log("Peer " + selfPeerId + " is choked by " + remotePeerId + ".", selfPeerId);
+                // The remote drops requests while we are choked, so hand ours back
+                chokedByRemote = true;
+                CHOKES_RECEIVED.increment();
+                releaseOutstandingRequests();
+                break;
+
+            case MessageCodec.UNCHOKE:
+                Logger.log("Peer " + selfPeerId + " is unchoked by " + remotePeerId + ".", selfPeerId);
+
+                chokedByRemote = false;
+                UNCHOKES_RECEIVED.increment();
+
+                if (!peerState.isComplete()) {
+                    fillRequestWindow();
+                }
+                break;
+
+            case MessageCodec.INTERESTED:
+                uploadManager.setInterested(remotePeerId, true);
+                Logger.log("Peer " + selfPeerId + " received the 'interested' message from " + remotePeerId + ".", selfPeerId);
+                break;
+            case MessageCodec.NOT_INTERESTED:
+                uploadManager.setInterested(remotePeerId, false);
+                Logger.log("Peer " + selfPeerId + " received the 'not interested' message from " + remotePeerId + ".", selfPeerId);
+                break;
+            case MessageCodec.REQUEST:
+                if (!uploadManager.isChoked(remotePeerId)) {
+                    int index = MessageCodec.pieceIndex(buf, offset);
+                    int begin = MessageCodec.begin(buf, offset);
+                    int requested = MessageCodec.requestLength(buf, offset);
+                    if (isValidRequest(index, begin, requested)) {
+                        int sent = out.sendBlock(peerState, index, begin, requested);
+                        uploadManager.recordUpload(remotePeerId, sent);
+                        bytesOut.add(sent);
+                    }
+                }
+                break;
+            case MessageCodec.CANCEL:
+                // Another peer delivered the block first; only an upload still in the queue can be dropped
+                int cancelled = out.cancelBlock(MessageCodec.pieceIndex(buf, offset), MessageCodec.begin(buf, offset));
+                uploadManager.recordUpload(remotePeerId, -cancelled);
+                bytesOut.add(-cancelled);
+                break;
+            case MessageCodec.HAVE:
+                onHave(MessageCodec.pieceIndex(buf, offset));
+                // The new piece may be the only one left to ask this peer for (e.g. in endgame)
+                if (!peerState.isComplete() && !chokedByRemote) {
+                    fillRequestWindow();
+                }
+                break;
+            case MessageCodec.HAVE_BATCH:
+                // Part of the compact-messages extension, so only legal once both sides negotiated it
+                if (!compactMessages())
+                    throw new Exception("HAVE_BATCH from peer " + remotePeerId + " without the compact-messages extension");
+                MessageCodec.forEachHave(buf, offset, length, haveHandler);
+                if (!peerState.isComplete() && !chokedByRemote) {
+                    fillRequestWindow();
+                }
+                break;
+            case MessageCodec.BITFIELD:
+            case MessageCodec.COMPACT_BITFIELD:
+                // Only ever sent once, as the first message
+                throw new Exception("Unexpected " + MessageCodec.name(msgType) + " from peer " + remotePeerId);
+            case MessageCodec.PEER_COMPLETED:
+                int completedPeerId = MessageCodec.peerId(buf, offset);
+
+                System.out.println("[Peer " + selfPeerId + "] Received PeerCompletedMessage: " + completedPeerId);
+                //Logger.log("Received PeerCompletedMessage: " + completedPeerId,  selfPeerId);
+                // System.out.println("[Peer " + selfPeerId + "] Peer completion map BEFORE: " + uploadManager.getPeerCompletionMap());
+                uploadManager.updatePeerCompletion(completedPeerId, true);
+                // System.out.println("[Peer " + selfPeerId + "] Peer completion map AFTER: " + uploadManager.getPeerCompletionMap());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onPiece(byte[] buf, int offset, int length) {
+        int pieceIndex = MessageCodec.pieceIndex(buf, offset);
+        int begin = MessageCodec.begin(buf, offset);
+        int blockLength = length - 8;
+        uploadManager.recordDownload(remotePeerId, blockLength);
+        bytesIn.add(blockLength);
+
+        // The block goes into its piece's reassembly buffer. In endgame it may also be
+        // requested from other peers, which are told to cancel. A block nobody is waiting
+        // for (already received, or its piece is owned) is dropped.
+        PiecePicker.Received received = piecePicker.blockReceived(remotePeerId, pieceIndex, begin, buf, offset + 8, blockLength);
+        if (received != null) {
+            if (!received.duplicateHolders.isEmpty()) {
+                // Queues only read their arrays, so every holder gets the same frame
+                ByteBuffer cancel = ByteBuffer.allocate(MessageCodec.CANCEL_LENGTH);
+                MessageCodec.encodeCancel(cancel, pieceIndex, begin, blockLength);
+                for (int other : received.duplicateHolders) {
+                    uploadManager.sendTo(other, cancel.array());
+                }
+            }
+            // Hashing happens off this thread; the piece is only owned and announced once it passes
+            if (received.piece != null) {
+                byte[] piece = received.piece;
+                int pieceLength = received.pieceLength;
+                Set<Integer> sources = received.sources;
+                long startedNanos = received.startedNanos;
+                verifier.verify(pieceIndex, piece, pieceLength,
+                        valid -> onPieceVerified(pieceIndex, piece, pieceLength, sources, startedNanos, valid));
             }
         }
+
+        if (!peerState.isComplete() && !chokedByRemote) {
+            fillRequestWindow();
+        }
+    }
+
+    public void onError(Exception e) {
+        String msg = e.getMessage() != null ? e.getMessage() : "";
+        // Only print unexpected errors, ignore normal socket closure/reset
+        if (!msg.contains("Socket closed") && !msg.contains("Connection reset")
+                && !(e instanceof ClosedChannelException)) {
+            System.err.println("[Peer " + selfPeerId + "] Exception: " + msg);
+            //Logger.log("Unexpected Exception: " + msg, selfPeerId);
+            e.printStackTrace();
+        }
     }
 
-    private void updateInterest(OutputStream os) throws Exception {
-        boolean complete = peerState.isComplete();
-        if (complete) {
-            os.write(new NotInterestedMessage().toBytes());
-            os.flush();
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (swarm != null) swarm.removeConnection(this);
+        if (uploadManager != null && remotePeerId != -1 && out != null) uploadManager.removePeer(remotePeerId, out);
+        releaseOutstandingRequests();
+        if (remoteBitfield != null) {
+            piecePicker.removeBitfield(remoteBitfield);
+        }
+        if (out != null) {
+            out.close();
+        }
+        try {
+            socket.close();
+        } catch (Exception ignore) {
+        }
+    }
+
+    // Runs on a verifier thread (or inline on this connection's thread without a manifest)
+    // piece is the pooled reassembly buffer; it goes back to the pool once rejected or written
+    private void onPieceVerified(int pieceIndex, byte[] piece, int pieceLength, Set<Integer> sources, long startedNanos, boolean valid) {
+        if (!valid) {
+            BufferPool.SHARED.release(piece);
+            piecePicker.verifyFailed(pieceIndex);
+            // A piece assembled from several peers cannot be blamed on one of them
+            if (sources.size() > 1) {
+                System.out.println("[Peer " + selfPeerId + "] Piece " + pieceIndex + " from peers " + sources + " failed verification");
+                if (!chokedByRemote) fillRequestWindow();
+                return;
+            }
+            // No rate credit for corrupt data, and a peer that keeps sending it is dropped
+            uploadManager.recordDownload(remotePeerId, -pieceLength);
+            int failures = hashFailures.incrementAndGet();
+            System.out.println("[Peer " + selfPeerId + "] Piece " + pieceIndex + " from " + remotePeerId + " failed verification (" + failures + ")");
+            if (failures == MAX_HASH_FAILURES) {
+                System.out.println("[Peer " + selfPeerId + "] Disconnecting " + remotePeerId + " after " + failures + " corrupt pieces");
+                close();
+            } else if (failures < MAX_HASH_FAILURES && !chokedByRemote) {
+                fillRequestWindow();
+            }
             return;
         }
-        boolean[] havePieces = peerState.getPieces();
-        boolean interested = false;
-        for (int i = 0; i < havePieces.length; i++) {
-            boolean remoteHas = ((remoteBitfield[i / 8] >> (7 - (i % 8))) & 1) == 1;
-            if (!havePieces[i] && remoteHas) {
-                interested = true;
-                break;
+
+        // Owned and announced only once the write is done; it may finish on the disk writer thread
+        peerState.storePiece(pieceIndex, piece, pieceLength, stored -> onPieceStored(pieceIndex, piece, pieceLength, startedNanos, stored));
+    }
+
+    private void onPieceStored(int pieceIndex, byte[] piece, int pieceLength, long startedNanos, boolean stored) {
+        BufferPool.SHARED.release(piece);
+        if (!stored) {
+            // Nothing usable reached the disk; the piece goes back to be downloaded again
+            piecePicker.verifyFailed(pieceIndex);
+            if (!chokedByRemote) fillRequestWindow();
+            return;
+        }
+        piecePicker.markOwned(pieceIndex);
+        swarm.pieceStored(pieceIndex, pieceLength, startedNanos);
+        swarm.announcePiece(pieceIndex);
+        Logger.log("Peer " + selfPeerId + " has downloaded the piece " + pieceIndex + " from " + remotePeerId + ". Now the number of pieces it has is " + peerState.getNumberOfPiecesOwned() + ".", selfPeerId);
+
+        // Only the connection whose piece finished the file announces it
+        if (peerState.claimCompletion()) {
+            try {
+                // uploadManager.updatePeerCompletion(selfPeerId, true);
+                System.out.println("[Peer " + selfPeerId + "] Marking self complete and broadcasting...");
+                Logger.log("Peer " + selfPeerId + " has downloaded the complete file.", selfPeerId);
+                uploadManager.updatePeerCompletion(selfPeerId, true);
+                uploadManager.broadcastPeerCompleted(selfPeerId);
+                /*
+                try {
+                    Thread.sleep(1000); // 1 second
+                } catch (InterruptedException ignore) {}
+                */
+            } catch (Exception e) {
+                System.err.println("[Peer " + selfPeerId + "] Exception during completion: " + e.getMessage());
+                e.printStackTrace();
             }
         }
-        if (interested) {
-            os.write(new InterestedMessage().toBytes());
-            os.flush();
-        } else {
-            os.write(new NotInterestedMessage().toBytes());
-            os.flush();
+    }
+
+    private void bind(Swarm swarm) {
+        this.swarm = swarm;
+        this.peerState = swarm.getPeerState();
+        this.uploadManager = swarm.getUploadManager();
+        this.piecePicker = swarm.getPiecePicker();
+        this.verifier = swarm.getVerifier();
+    }
+
+    // Tops the pipeline back up to maxOutstandingRequests; the new REQUESTs are queued as one array
+    private void fillRequestWindow() {
+        windowLock.lock();
+        try {
+            int room = maxOutstandingRequests - piecePicker.reservedCount(remotePeerId);
+            if (room <= 0) return;
+            PiecePicker.Block block = piecePicker.pick(remotePeerId, remoteBitfield);
+            if (block == null) return;
+            ByteBuffer requests = ByteBuffer.allocate(room * MessageCodec.REQUEST_LENGTH);
+            while (block != null) {
+                MessageCodec.encodeRequest(requests, block.pieceIndex, block.begin, block.length);
+                if (!requests.hasRemaining()) break;
+                block = piecePicker.pick(remotePeerId, remoteBitfield);
+            }
+            if (requests.position() == requests.capacity()) {
+                out.send(requests.array());
+            } else if (requests.position() > 0) {
+                out.send(Arrays.copyOf(requests.array(), requests.position()));
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    // Only blocks of pieces we have, inside the piece
+    private boolean isValidRequest(int index, int begin, int length) {
+        if (index < 0 || index >= peerState.getNumPieces() || !peerState.hasPiece(index)) return false;
+        return begin >= 0 && length > 0 && (long) begin + length <= peerState.getPieceLength(index);
+    }
+
+    private void releaseOutstandingRequests() {
+        if (remotePeerId != -1) {
+            piecePicker.releaseAll(remotePeerId);
+        }
+    }
+
+    private void onHave(int haveIndex) {
+        if (haveIndex < 0 || haveIndex >= peerState.getNumPieces()) return;
+        Logger.log("Peer " + selfPeerId + " received the 'have' message from " + remotePeerId + " for the piece " + haveIndex + ".", selfPeerId);
+
+        if (remoteBitfield == null) {
+            remoteBitfield = new AtomicBitfield(peerState.getNumPieces());
         }
+        if (piecePicker.addHave(remoteBitfield, haveIndex)) {
+            remotePieceAdded(haveIndex);
+        }
+    }
+
+    // Run-length encoded bitfield frame, trimmed to size
+    private byte[] compactBitfieldFrame() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.compactBitfieldMaxLength(peerState.getNumPieces()));
+        MessageCodec.encodeCompactBitfield(frame, peerState.getPieces());
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private boolean compactMessages() {
+        return (extensions & HandshakeMessage.EXT_COMPACT_MESSAGES) != 0;
+    }
+
+    private void remotePieceAdded(int pieceIndex) {
+        interestLock.lock();
+        try {
+            if (wanted != null && !peerState.hasPiece(pieceIndex) && wanted.set(pieceIndex)) sendInterestIfChanged();
+        } finally {
+            interestLock.unlock();
+        }
+    }
+
+    // Called through the swarm once one of our pieces is owned, on whichever thread stored it
+    void localPieceOwned(int pieceIndex) {
+        interestLock.lock();
+        try {
+            if (wanted != null && wanted.clear(pieceIndex)) sendInterestIfChanged();
+        } finally {
+            interestLock.unlock();
+        }
+    }
+
+    // INTERESTED / NOT_INTERESTED only when the answer changes; caller holds interestLock
+    private void sendInterestIfChanged() {
+        boolean interested = wanted.cardinality() > 0;
+        if (interestSent != null && interestSent == interested) return;
+        interestSent = interested;
+        out.send(MessageCodec.emptyFrame(interested ? MessageCodec.INTERESTED : MessageCodec.NOT_INTERESTED));
     }
 }
@@ -0,0 +1,156 @@
+package peer;
+
+import utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Write-behind for received pieces, so a slow disk holds up a background thread instead of
+ * the threads that read sockets and hash pieces.
+ *
+ * Pieces wait in a bounded queue; submit blocks once it is full. The writer takes everything
+ * queued at once, sorts it and writes each run of consecutive pieces with a single gathering
+ * write. With syncEachBatch the batch is forced to the device before anyone is told, so a
+ * piece is never owned (or announced) before it is durable; otherwise it is owned once the
+ * OS has it, as with a direct write.
+ */
+public class DiskWriter implements Runnable {
+
+    private static final Metrics.Histogram WRITE_LATENCY = Metrics.histogram("disk_batch_write_us");
+    private static final Metrics.Counter WRITE_CALLS = Metrics.counter("disk_write_calls");
+    private static final Metrics.Counter PIECES_WRITTEN = Metrics.counter("disk_pieces_written");
+
+    private static class Write {
+        final int pieceIndex;
+        final byte[] data;
+        final int length;
+        final Consumer<Boolean> onWritten;
+
+        Write(int pieceIndex, byte[] data, int length, Consumer<Boolean> onWritten) {
+            this.pieceIndex = pieceIndex;
+            this.data = data;
+            this.length = length;
+            this.onWritten = onWritten;
+        }
+    }
+
+    private static final Write STOP = new Write(-1, null, 0, null);
+
+    private final PieceStore store;
+    private final boolean syncEachBatch;
+    private final BlockingQueue<Write> queue;
+    private final LongSupplier queueDepth;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    public DiskWriter(PieceStore store, int maxQueuedPieces, boolean syncEachBatch) {
+        this.store = store;
+        this.syncEachBatch = syncEachBatch;
+        this.queue = new ArrayBlockingQueue<>(maxQueuedPieces);
+        this.queueDepth = queue::size;
+        Metrics.gauge("disk_write_queue", queueDepth);
+        this.thread = new Thread(this, "disk-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Queues the first length bytes of data as the piece. onWritten runs on the writer thread
+    // with false if the write failed; data must not be reused before then.
+    public void submit(int pieceIndex, byte[] data, int length, Consumer<Boolean> onWritten) {
+        if (closed) {
+            onWritten.accept(false);
+            return;
+        }
+        try {
+            queue.put(new Write(pieceIndex, data, length, onWritten));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onWritten.accept(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Write> batch = new ArrayList<>();
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                stopping = batch.remove(STOP);
+                writeBatch(batch);
+                batch.clear();
+            }
+            // Anything submitted while close() was queueing STOP
+            queue.drainTo(batch);
+            writeBatch(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(List<Write> batch) {
+        if (batch.isEmpty()) return;
+        batch.sort(Comparator.comparingInt(w -> w.pieceIndex));
+        boolean[] written = new boolean[batch.size()];
+        int start = 0;
+        while (start < batch.size()) {
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).pieceIndex == batch.get(end - 1).pieceIndex + 1) end++;
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++) {
+                Write w = batch.get(i);
+                run[i - start] = ByteBuffer.wrap(w.data, 0, w.length);
+            }
+            long begin = System.nanoTime();
+            try {
+                store.writeRun(batch.get(start).pieceIndex, run);
+                WRITE_LATENCY.record((System.nanoTime() - begin) / 1000);
+                WRITE_CALLS.increment();
+                PIECES_WRITTEN.add(run.length);
+                for (int i = start; i < end; i++) written[i] = true;
+            } catch (IOException e) {
+                System.out.println("Could not write pieces " + batch.get(start).pieceIndex + "-" + batch.get(end - 1).pieceIndex
+                        + ": " + e.getMessage());
+            }
+            start = end;
+        }
+        if (syncEachBatch) {
+            try {
+                store.force();
+            } catch (IOException e) {
+                System.out.println("Could not sync written pieces: " + e.getMessage());
+                written = new boolean[batch.size()];
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                batch.get(i).onWritten.accept(written[i]);
+            } catch (RuntimeException e) {
+                // One failing callback must not stop the writer for the rest of the swarm
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Finishes the queued writes and stops the thread
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(STOP);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Metrics.removeGauge("disk_write_queue", queueDepth);
+    }
+}
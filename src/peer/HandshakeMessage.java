@@ -3,24 +3,47 @@ package peer;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+// Header (18 bytes), info-hash of the swarm (8), extension flags (2), peer ID (4).
+// An info-hash of 0 means "the only swarm". An extension is used only if both sides set it.
 public class HandshakeMessage {
     public static final String HEADER = "P2PFILESHARINGPROJ";
     public static final int HANDSHAKE_LENGTH = 32;
 
+    // Batched HAVEs (MessageCodec.HAVE_BATCH) and run-length bitfields (MessageCodec.COMPACT_BITFIELD)
+    public static final int EXT_COMPACT_MESSAGES = 0x0001;
+    public static final int SUPPORTED_EXTENSIONS = EXT_COMPACT_MESSAGES;
+
     private int peerId;
+    private long infoHash;
+    private int extensions;
+
+    public HandshakeMessage(int peerId, long infoHash) {
+        this(peerId, infoHash, 0);
+    }
 
-    public HandshakeMessage(int peerId) {
+    public HandshakeMessage(int peerId, long infoHash, int extensions) {
         this.peerId = peerId;
+        this.infoHash = infoHash;
+        this.extensions = extensions;
     }
 
     public int getPeerId() {
         return peerId;
     }
 
+    public long getInfoHash() {
+        return infoHash;
+    }
+
+    public int getExtensions() {
+        return extensions;
+    }
+
     public byte[] toBytes() {
         ByteBuffer buffer = ByteBuffer.allocate(HANDSHAKE_LENGTH);
         buffer.put(HEADER.getBytes(StandardCharsets.US_ASCII));
-        buffer.put(new byte[10]);
+        buffer.putLong(infoHash);
+        buffer.putShort((short) extensions);
         buffer.putInt(peerId);
         return buffer.array();
     }
@@ -31,8 +54,10 @@ public class HandshakeMessage {
         String header = new String(data, 0, 18, StandardCharsets.US_ASCII);
         if (!HEADER.equals(header))
             throw new IllegalArgumentException("Invalid handshake header.");
-        ByteBuffer buffer = ByteBuffer.wrap(data, 28, 4);
-        int peerId = buffer.getInt();
-        return new HandshakeMessage(peerId);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long infoHash = buffer.getLong(18);
+        int extensions = buffer.getShort(26) & 0xffff;
+        int peerId = buffer.getInt(28);
+        return new HandshakeMessage(peerId, infoHash, extensions);
     }
 }
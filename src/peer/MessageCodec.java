@@ -0,0 +1,279 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+
+/**
+ * Wire format of every message after the handshake: a 4-byte length (type byte plus
+ * payload), the type byte, then the payload, all big-endian.
+ *
+ * Type IDs are declared and registered here only. Registering an ID twice fails class
+ * initialisation, so a new message cannot quietly shadow an existing one. Encoders write
+ * whole frames into a caller's ByteBuffer. Decoding reads fields straight out of the
+ * receive buffer at the payload offset, so the codec itself builds no objects.
+ *
+ * Outbound queues keep the arrays they are given until they are written, so a sent frame
+ * is its own array rather than a reused one. Only the payload-free frames are shared.
+ */
+public final class MessageCodec {
+
+    public static final byte CHOKE = 0;
+    public static final byte UNCHOKE = 1;
+    public static final byte INTERESTED = 2;
+    public static final byte NOT_INTERESTED = 3;
+    public static final byte HAVE = 4;
+    public static final byte BITFIELD = 5;
+    public static final byte REQUEST = 6;
+    public static final byte PIECE = 7;
+    public static final byte CANCEL = 8;
+    // Compact-messages extension
+    public static final byte HAVE_BATCH = 9;
+    public static final byte COMPACT_BITFIELD = 10;
+    // Sent by a peer once it has the whole file
+    public static final byte PEER_COMPLETED = 11;
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int PIECE_HEADER_LENGTH = HEADER_LENGTH + 8;
+    public static final int EMPTY_LENGTH = HEADER_LENGTH;
+    public static final int HAVE_LENGTH = HEADER_LENGTH + 4;
+    public static final int REQUEST_LENGTH = HEADER_LENGTH + 12;
+    public static final int CANCEL_LENGTH = REQUEST_LENGTH;
+    public static final int PEER_COMPLETED_LENGTH = HEADER_LENGTH + 4;
+
+    private static final String[] NAMES = new String[256];
+    private static final int[] MIN_PAYLOAD = new int[256];
+    private static final int[] MAX_PAYLOAD = new int[256];
+    // Payload-free messages never change, so every connection queues the same frame
+    private static final byte[][] EMPTY_FRAMES = new byte[256][];
+
+    static {
+        register(CHOKE, "CHOKE", 0, 0);
+        register(UNCHOKE, "UNCHOKE", 0, 0);
+        register(INTERESTED, "INTERESTED", 0, 0);
+        register(NOT_INTERESTED, "NOT_INTERESTED", 0, 0);
+        register(HAVE, "HAVE", 4, 4);
+        register(BITFIELD, "BITFIELD", 0, Integer.MAX_VALUE);
+        register(REQUEST, "REQUEST", 12, 12);
+        register(PIECE, "PIECE", 8, Integer.MAX_VALUE);
+        register(CANCEL, "CANCEL", 12, 12);
+        register(HAVE_BATCH, "HAVE_BATCH", 1, Integer.MAX_VALUE);
+        register(COMPACT_BITFIELD, "COMPACT_BITFIELD", 1, Integer.MAX_VALUE);
+        register(PEER_COMPLETED, "PEER_COMPLETED", 4, 4);
+    }
+
+    private MessageCodec() {
+    }
+
+    private static void register(byte type, String name, int minPayload, int maxPayload) {
+        int slot = type & 0xff;
+        if (NAMES[slot] != null)
+            throw new IllegalStateException("Message type " + slot + " is registered for both " + NAMES[slot] + " and " + name);
+        NAMES[slot] = name;
+        MIN_PAYLOAD[slot] = minPayload;
+        MAX_PAYLOAD[slot] = maxPayload;
+        if (maxPayload == 0) {
+            ByteBuffer frame = ByteBuffer.allocate(EMPTY_LENGTH);
+            putHeader(frame, type, 0);
+            EMPTY_FRAMES[slot] = frame.array();
+        }
+    }
+
+    public static boolean isRegistered(byte type) {
+        return NAMES[type & 0xff] != null;
+    }
+
+    public static String name(byte type) {
+        String name = NAMES[type & 0xff];
+        return name != null ? name : "UNKNOWN(" + (type & 0xff) + ")";
+    }
+
+    // Field reads below are unchecked, so a frame's size is checked once before any of them
+    public static void checkPayload(byte type, int length) {
+        int slot = type & 0xff;
+        if (NAMES[slot] != null && (length < MIN_PAYLOAD[slot] || length > MAX_PAYLOAD[slot]))
+            throw new IllegalArgumentException(NAMES[slot] + " with a " + length + "-byte payload");
+    }
+
+    // Largest payload a peer can legitimately send for a file of numPieces pieces: the
+    // first message (a bitfield, at most a fully fragmented compact one), and after that
+    // a PIECE (a block is never larger than a piece) or a HAVE_BATCH of every piece
+    public static int maxPayload(int numPieces, int pieceSize, boolean firstMessage) {
+        long max = firstMessage ? 1 + 5L * (numPieces + 1) : Math.max(8L + pieceSize, 5L * numPieces);
+        return (int) Math.min(max, Integer.MAX_VALUE - HEADER_LENGTH);
+    }
+
+    // ---- Encoding: each call appends one whole frame at dst's position ----
+
+    public static void putHeader(ByteBuffer dst, byte type, int payloadLength) {
+        dst.putInt(1 + payloadLength);
+        dst.put(type);
+    }
+
+    // The shared frame for CHOKE, UNCHOKE, INTERESTED or NOT_INTERESTED; must not be modified
+    public static byte[] emptyFrame(byte type) {
+        byte[] frame = EMPTY_FRAMES[type & 0xff];
+        if (frame == null) throw new IllegalArgumentException(name(type) + " has a payload");
+        return frame;
+    }
+
+    public static void encodeHave(ByteBuffer dst, int pieceIndex) {
+        putHeader(dst, HAVE, 4);
+        dst.putInt(pieceIndex);
+    }
+
+    public static void encodeBitfield(ByteBuffer dst, byte[] bitfield) {
+        putHeader(dst, BITFIELD, bitfield.length);
+        dst.put(bitfield);
+    }
+
+    public static void encodeRequest(ByteBuffer dst, int pieceIndex, int begin, int length) {
+        putHeader(dst, REQUEST, 12);
+        dst.putInt(pieceIndex).putInt(begin).putInt(length);
+    }
+
+    // Only the header; the block follows it from wherever the caller reads it
+    public static void encodePieceHeader(ByteBuffer dst, int pieceIndex, int begin, int blockLength) {
+        putHeader(dst, PIECE, 8 + blockLength);
+        dst.putInt(pieceIndex).putInt(begin);
+    }
+
+    public static void encodeCancel(ByteBuffer dst, int pieceIndex, int begin, int length) {
+        putHeader(dst, CANCEL, 12);
+        dst.putInt(pieceIndex).putInt(begin).putInt(length);
+    }
+
+    public static void encodePeerCompleted(ByteBuffer dst, int peerId) {
+        putHeader(dst, PEER_COMPLETED, 4);
+        dst.putInt(peerId);
+    }
+
+    public static int haveBatchMaxLength(int count) {
+        return HEADER_LENGTH + 5 * count;
+    }
+
+    // Several HAVEs in one frame: the first count indexes, which must be in ascending order,
+    // each as a varint delta from the one before, so nearby pieces cost a byte or two each
+    public static void encodeHaveBatch(ByteBuffer dst, int[] sortedIndexes, int count) {
+        int start = dst.position();
+        dst.position(start + HEADER_LENGTH);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            putVarint(dst, sortedIndexes[i] - previous);
+            previous = sortedIndexes[i];
+        }
+        dst.putInt(start, dst.position() - start - 4);
+        dst.put(start + 4, HAVE_BATCH);
+    }
+
+    public static int compactBitfieldMaxLength(int numPieces) {
+        return HEADER_LENGTH + 1 + 5 * (numPieces + 1);
+    }
+
+    // Run-length encoded bitfield: the value of the first run (0 or 1) as a byte, then the
+    // length of each run as a varint, alternating between missing and owned pieces. A new
+    // leecher or a seeder is a single run, i.e. a frame of seven or eight bytes.
+    public static void encodeCompactBitfield(ByteBuffer dst, AtomicBitfield bitfield) {
+        int start = dst.position();
+        dst.position(start + HEADER_LENGTH);
+        int numPieces = bitfield.size();
+        boolean owned = numPieces > 0 && bitfield.get(0);
+        dst.put((byte) (owned ? 1 : 0));
+        int from = 0;
+        while (from < numPieces) {
+            int end = owned ? bitfield.nextClearBit(from) : bitfield.nextSetBit(from);
+            if (end == -1) end = numPieces;
+            putVarint(dst, end - from);
+            from = end;
+            owned = !owned;
+        }
+        dst.putInt(start, dst.position() - start - 4);
+        dst.put(start + 4, COMPACT_BITFIELD);
+    }
+
+    // ---- Decoding: accessors on a payload that starts at buf[offset] ----
+
+    // HAVE, REQUEST, CANCEL and PIECE
+    public static int pieceIndex(byte[] buf, int offset) {
+        return getInt(buf, offset);
+    }
+
+    // REQUEST, CANCEL and PIECE
+    public static int begin(byte[] buf, int offset) {
+        return getInt(buf, offset + 4);
+    }
+
+    // REQUEST and CANCEL
+    public static int requestLength(byte[] buf, int offset) {
+        return getInt(buf, offset + 8);
+    }
+
+    public static int peerId(byte[] buf, int offset) {
+        return getInt(buf, offset);
+    }
+
+    public static AtomicBitfield decodeBitfield(byte[] buf, int offset, int length, int numPieces) {
+        return AtomicBitfield.fromBytes(buf, offset, length, numPieces);
+    }
+
+    // Hands each index of a HAVE_BATCH to onHave, in order
+    public static void forEachHave(byte[] buf, int offset, int length, IntConsumer onHave) {
+        int end = offset + length;
+        int pos = offset;
+        int index = 0;
+        while (pos < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos == end || shift == 35) throw new IllegalArgumentException("Truncated HAVE_BATCH");
+                b = buf[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            index += delta;
+            onHave.accept(index);
+        }
+    }
+
+    // Runs past numPieces are rejected; pieces past the last run are missing
+    public static AtomicBitfield decodeCompactBitfield(byte[] buf, int offset, int length, int numPieces) {
+        ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+        AtomicBitfield bitfield = new AtomicBitfield(numPieces);
+        boolean owned = in.get() != 0;
+        int start = 0;
+        while (in.hasRemaining()) {
+            int run = getVarint(in);
+            if (run < 0 || run > numPieces - start)
+                throw new IllegalArgumentException("Bitfield run past piece " + numPieces);
+            if (owned) {
+                for (int i = start; i < start + run; i++) bitfield.set(i);
+            }
+            start += run;
+            owned = !owned;
+        }
+        return bitfield;
+    }
+
+    // Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last byte
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Varint longer than 5 bytes");
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
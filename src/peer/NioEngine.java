@@ -0,0 +1,404 @@
+package peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Selector-based alternative to running one blocking ConnectionHandler thread per socket.
+ *
+ * A few event-loop threads each own a Selector and a set of non-blocking SocketChannels.
+ * Incoming bytes are framed out of a per-connection ByteBuffer and handed to the same
+ * ConnectionHandler callbacks the blocking engine uses; outgoing messages are queued and
+ * written when the channel is writable, so a single slow peer never holds a thread.
+ * When more than maxQueuedBytes are waiting to go out to a peer, the loop stops reading
+ * from it until the backlog halves, and likewise while the piece verifier is behind. Blocks to upload are read from disk on a separate
+ * pool, so a slow disk delays uploads rather than every connection on the loop.
+ */
+public class NioEngine {
+
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+    // How often a loop rechecks sessions paused for the verifier
+    private static final long VERIFIER_RETRY_MILLIS = 10;
+
+    private final EventLoop[] loops;
+    private final ExecutorService diskReads;
+    private final Function<Socket, ConnectionHandler> acceptedHandlerFactory;
+    private final int maxQueuedBytes;
+    private int nextLoop = 0;
+
+    public NioEngine(int threads, int maxQueuedBytes, Function<Socket, ConnectionHandler> acceptedHandlerFactory) throws IOException {
+        this.acceptedHandlerFactory = acceptedHandlerFactory;
+        this.maxQueuedBytes = maxQueuedBytes;
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        diskReads = Executors.newFixedThreadPool(loops.length, task -> {
+            Thread t = new Thread(task, "nio-disk");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        EventLoop loop = loops[0];
+        loop.execute(() -> {
+            try {
+                server.register(loop.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                System.out.println("Server socket closed or error: " + e.getMessage());
+            }
+        });
+    }
+
+    // Connects in blocking mode, then hands the channel to an event loop
+    public void connect(InetSocketAddress address, Function<Socket, ConnectionHandler> handlerFactory) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        register(channel, handlerFactory);
+    }
+
+    // Closes the listener and every connection, then stops the event loops
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.execute(loop::shutdown);
+        }
+        diskReads.shutdown();
+    }
+
+    private void register(SocketChannel channel, Function<Socket, ConnectionHandler> handlerFactory) throws IOException {
+        channel.configureBlocking(false);
+        ConnectionHandler handler = handlerFactory.apply(channel.socket());
+        EventLoop loop;
+        synchronized (this) {
+            loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+        Session session = new Session(channel, handler, loop);
+        loop.execute(session::open);
+    }
+
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Set<Session> waitingForVerifier = new HashSet<>(); // loop thread only
+        volatile Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (selector.isOpen()) {
+                try {
+                    if (waitingForVerifier.isEmpty()) selector.select();
+                    else selector.select(VERIFIER_RETRY_MILLIS);
+                } catch (IOException e) {
+                    System.out.println("Selector error: " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!selector.isOpen()) return;
+                for (Session session : new ArrayList<>(waitingForVerifier)) {
+                    session.updateInterestOps();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(key);
+                    } else {
+                        ((Session) key.attachment()).handle(key);
+                    }
+                }
+            }
+        }
+
+        void shutdown() {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Session) {
+                    ((Session) key.attachment()).fail(null);
+                } else {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void accept(SelectionKey key) {
+            try {
+                SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel != null) {
+                    register(channel, acceptedHandlerFactory);
+                }
+            } catch (IOException e) {
+                System.out.println("Server socket closed or error: " + e.getMessage());
+            }
+        }
+    }
+
+    // A queued frame; pooled frames go back to the BufferPool once written or cancelled
+    private static class PendingWrite {
+        final ByteBuffer buf;
+        final boolean pooled;
+
+        PendingWrite(ByteBuffer buf, boolean pooled) {
+            this.buf = buf;
+            this.pooled = pooled;
+        }
+    }
+
+    // One connection, and the Outbound its handler and UploadManager send through
+    private class Session implements Outbound {
+        private final SocketChannel channel;
+        private final ConnectionHandler handler;
+        private final EventLoop loop;
+        private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private boolean readPaused = false;
+        private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private SelectionKey key;
+        private boolean handshakeDone = false;
+        private boolean bitfieldDone = false;
+        private volatile boolean closed = false;
+
+        Session(SocketChannel channel, ConnectionHandler handler, EventLoop loop) {
+            this.channel = channel;
+            this.handler = handler;
+            this.loop = loop;
+        }
+
+        void open() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                handler.sendHandshake(this);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isWritable()) writePending();
+                if (key.isValid() && key.isReadable()) readFrames();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void readFrames() throws Exception {
+            if (channel.read(readBuf) == -1) {
+                fail(null);
+                return;
+            }
+            readBuf.flip();
+            while (!closed) {
+                if (!handshakeDone) {
+                    if (readBuf.remaining() < HandshakeMessage.HANDSHAKE_LENGTH) break;
+                    byte[] hsBuf = new byte[HandshakeMessage.HANDSHAKE_LENGTH];
+                    readBuf.get(hsBuf);
+                    handshakeDone = true;
+                    handler.onHandshake(hsBuf);
+                    continue;
+                }
+
+                if (readBuf.remaining() < 4) break;
+                int msgLen = readBuf.getInt(readBuf.position());
+                if (msgLen < 1 || msgLen - 1 > handler.maxPayloadLength(!bitfieldDone))
+                    throw new Exception("Invalid message length " + msgLen);
+                if (readBuf.remaining() < 4 + msgLen) {
+                    if (4 + msgLen > readBuf.capacity()) {
+                        // Frame is larger than the buffer (e.g. a big PieceSize): grow and keep reading
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + msgLen);
+                        bigger.put(readBuf);
+                        readBuf = bigger;
+                        return;
+                    }
+                    break;
+                }
+
+                readBuf.getInt();
+                byte msgType = readBuf.get();
+                if (!bitfieldDone) {
+                    byte[] payload = new byte[msgLen - 1];
+                    readBuf.get(payload);
+                    bitfieldDone = true;
+                    handler.onBitfield(msgType, payload);
+                } else {
+                    // Handed over in place; the handler copies what it keeps
+                    int offset = readBuf.arrayOffset() + readBuf.position();
+                    readBuf.position(readBuf.position() + msgLen - 1);
+                    handler.onFrame(msgType, readBuf.array(), offset, msgLen - 1);
+                }
+            }
+            readBuf.compact();
+            if (!closed) updateInterestOps();
+        }
+
+        private void writePending() {
+            if (closed) return;
+            try {
+                PendingWrite write;
+                while ((write = pendingWrites.peek()) != null) {
+                    int n = channel.write(write.buf);
+                    pendingBytes.addAndGet(-n);
+                    if (write.buf.hasRemaining()) break; // socket buffer is full; wait for OP_WRITE
+                    pendingWrites.poll();
+                    if (write.pooled) BufferPool.SHARED.release(write.buf.array());
+                }
+                updateInterestOps();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        // Write interest while anything is queued; read interest unless the peer's backlog is too
+        // big or the verifier is behind
+        private void updateInterestOps() {
+            if (closed) {
+                loop.waitingForVerifier.remove(this);
+                return;
+            }
+            long backlog = pendingBytes.get();
+            if (!readPaused && backlog > maxQueuedBytes) {
+                readPaused = true;
+            } else if (readPaused && backlog <= maxQueuedBytes / 2) {
+                readPaused = false;
+            }
+            boolean verifierBusy = handler.isVerifierSaturated();
+            if (verifierBusy) loop.waitingForVerifier.add(this);
+            else loop.waitingForVerifier.remove(this);
+            int ops = readPaused || verifierBusy ? 0 : SelectionKey.OP_READ;
+            if (!pendingWrites.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void fail(Exception e) {
+            if (closed) return;
+            closed = true;
+            // Runs on the loop, which is the only thread that queues pooled frames
+            PendingWrite write;
+            while ((write = pendingWrites.poll()) != null) {
+                if (write.pooled) BufferPool.SHARED.release(write.buf.array());
+            }
+            if (e != null) handler.onError(e);
+            handler.close();
+        }
+
+        @Override
+        public void send(byte[] message) {
+            if (closed) return;
+            enqueue(new PendingWrite(ByteBuffer.wrap(message), false));
+        }
+
+        private void enqueue(PendingWrite write) {
+            pendingBytes.addAndGet(write.buf.remaining());
+            enqueueCounted(write);
+        }
+
+        // For a write whose bytes are already in pendingBytes
+        private void enqueueCounted(PendingWrite write) {
+            pendingWrites.add(write);
+            if (loop.inLoop()) {
+                writePending();
+            } else {
+                loop.execute(this::writePending);
+            }
+        }
+
+        // Called on the loop, which hands the disk read to the disk pool and returns at once.
+        // The block counts towards the backlog from here, so reads still pause while a slow
+        // disk has many blocks outstanding. A CANCEL cannot drop a block still being read.
+        @Override
+        public int sendBlock(PeerState source, int pieceIndex, int begin, int length) {
+            if (closed) return 0;
+            pendingBytes.addAndGet(MessageCodec.PIECE_HEADER_LENGTH + length);
+            diskReads.execute(() -> {
+                // The frame is built in a pooled buffer, returned once it has been written
+                byte[] frame = BufferPool.SHARED.acquire(MessageCodec.PIECE_HEADER_LENGTH + length);
+                int read = source.readBlockInto(pieceIndex, begin, length, frame, MessageCodec.PIECE_HEADER_LENGTH);
+                ByteBuffer buf = ByteBuffer.wrap(frame, 0, MessageCodec.PIECE_HEADER_LENGTH + read);
+                MessageCodec.encodePieceHeader(buf, pieceIndex, begin, read);
+                buf.rewind();
+                loop.execute(() -> {
+                    pendingBytes.addAndGet(read - length);
+                    if (closed) {
+                        BufferPool.SHARED.release(frame);
+                        return;
+                    }
+                    enqueueCounted(new PendingWrite(buf, true));
+                });
+            });
+            return length;
+        }
+
+        // Runs on the event loop (CANCEL is handled there), the only thread that removes writes
+        @Override
+        public int cancelBlock(int pieceIndex, int begin) {
+            boolean head = true;
+            for (Iterator<PendingWrite> it = pendingWrites.iterator(); it.hasNext(); ) {
+                PendingWrite write = it.next();
+                ByteBuffer buf = write.buf;
+                // A partly written message has to be finished
+                boolean started = head && buf.position() > 0;
+                head = false;
+                if (started || buf.remaining() < MessageCodec.PIECE_HEADER_LENGTH) continue;
+                int start = buf.position();
+                if (buf.get(start + 4) == MessageCodec.PIECE && buf.getInt(start + 5) == pieceIndex
+                        && buf.getInt(start + 9) == begin) {
+                    it.remove();
+                    int removed = buf.remaining();
+                    pendingBytes.addAndGet(-removed);
+                    if (write.pooled) BufferPool.SHARED.release(buf.array());
+                    return removed - MessageCodec.PIECE_HEADER_LENGTH;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            loop.execute(() -> fail(null));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package peer;
+
+/**
+ * Outgoing side of one connection. Messages are queued and written by the connection's
+ * own writer, so callers (including UploadManager broadcasts) never wait on a slow socket.
+ */
+public interface Outbound {
+
+    // Queues a complete encoded message; never blocks
+    void send(byte[] message);
+
+    // Queues a PIECE upload of one block read from source and returns the payload bytes
+    // queued. May block the caller while too much piece data is already queued for this peer,
+    // which in turn stops reading its requests.
+    int sendBlock(PeerState source, int pieceIndex, int begin, int length) throws InterruptedException;
+
+    // Drops a queued block upload that has not started writing yet (remote sent CANCEL).
+    // Returns the payload bytes removed, 0 if the block was not queued.
+    int cancelBlock(int pieceIndex, int begin);
+
+    void close();
+}
@@ -0,0 +1,215 @@
+package peer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound queue for a blocking socket, drained by a dedicated writer thread.
+ *
+ * Control messages queued since the last write are coalesced into a single write and
+ * flush. PIECE uploads are sent with FileChannel.transferTo when the socket has a
+ * blocking channel and fall back to a buffered copy otherwise.
+ *
+ * Queued PIECE bytes are bounded by maxQueuedBytes: sendBlock waits for room. Control
+ * messages never wait, but a peer that lets maxQueuedBytes of them pile up is treated
+ * as stalled and disconnected.
+ */
+public class OutboundQueue implements Outbound, Runnable {
+
+    private static final int COALESCE_BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final int maxQueuedBytes;
+    // A lock rather than a monitor, so a writer or producer parked here on a virtual thread
+    // releases its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+    private long queuedPieceBytes = 0;
+    private long queuedControlBytes = 0;
+    private boolean closed = false;
+    private final ByteBuffer pieceHeader = ByteBuffer.allocate(MessageCodec.PIECE_HEADER_LENGTH); // writer thread only
+
+    // A queued block upload; the bytes are only read (or transferred) when it is written
+    private static class PieceUpload {
+        final PeerState source;
+        final int pieceIndex;
+        final int begin;
+        final int length;
+
+        PieceUpload(PeerState source, int pieceIndex, int begin, int length) {
+            this.source = source;
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
+            this.length = length;
+        }
+    }
+
+    public OutboundQueue(Socket socket, int maxQueuedBytes) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), COALESCE_BUFFER_SIZE);
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    @Override
+    public void send(byte[] message) {
+        boolean stalled;
+        lock.lock();
+        try {
+            if (closed) return;
+            queue.add(message);
+            queuedControlBytes += message.length;
+            stalled = queuedControlBytes > maxQueuedBytes;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (stalled) {
+            System.out.println("Outbound queue to " + socket.getRemoteSocketAddress() + " is stalled; disconnecting");
+            close();
+        }
+    }
+
+    @Override
+    public int sendBlock(PeerState source, int pieceIndex, int begin, int length) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && queuedPieceBytes > 0 && queuedPieceBytes + length > maxQueuedBytes) {
+                drained.await();
+            }
+            if (closed) return 0;
+            queue.add(new PieceUpload(source, pieceIndex, begin, length));
+            queuedPieceBytes += length;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return length;
+    }
+
+    @Override
+    public int cancelBlock(int pieceIndex, int begin) {
+        lock.lock();
+        try {
+            for (Iterator<Object> it = queue.iterator(); it.hasNext(); ) {
+                Object item = it.next();
+                if (item instanceof PieceUpload) {
+                    PieceUpload upload = (PieceUpload) item;
+                    if (upload.pieceIndex == pieceIndex && upload.begin == begin) {
+                        it.remove();
+                        queuedPieceBytes -= upload.length;
+                        drained.signalAll();
+                        return upload.length;
+                    }
+                }
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+            notEmpty.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closed) notEmpty.await();
+                    if (closed) return;
+                    batch.addAll(queue);
+                    queue.clear();
+                } finally {
+                    lock.unlock();
+                }
+
+                long pieceBytes = 0;
+                long controlBytes = 0;
+                for (Object item : batch) {
+                    if (item instanceof byte[]) {
+                        byte[] message = (byte[]) item;
+                        out.write(message);
+                        controlBytes += message.length;
+                    } else {
+                        PieceUpload upload = (PieceUpload) item;
+                        writePiece(upload);
+                        pieceBytes += upload.length;
+                    }
+                }
+                out.flush();
+                batch.clear();
+
+                lock.lock();
+                try {
+                    queuedPieceBytes -= pieceBytes;
+                    queuedControlBytes -= controlBytes;
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reader sees the closed socket and cleans up the connection
+        } finally {
+            close();
+        }
+    }
+
+    private void writePiece(PieceUpload upload) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking() && upload.length > 0) {
+            // Header through the stream (after anything coalesced before it), body straight from the file
+            writePieceHeader(upload, upload.length);
+            out.flush();
+            upload.source.transferBlock(upload.pieceIndex, upload.begin, upload.length, channel);
+            return;
+        }
+        byte[] block = BufferPool.SHARED.acquire(upload.length);
+        try {
+            int read = upload.source.readBlockInto(upload.pieceIndex, upload.begin, upload.length, block, 0);
+            writePieceHeader(upload, read);
+            out.write(block, 0, read);
+        } finally {
+            BufferPool.SHARED.release(block);
+        }
+    }
+
+    private void writePieceHeader(PieceUpload upload, int blockLength) throws IOException {
+        pieceHeader.clear();
+        MessageCodec.encodePieceHeader(pieceHeader, upload.pieceIndex, upload.begin, blockLength);
+        out.write(pieceHeader.array());
+    }
+}
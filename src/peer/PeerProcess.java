@@ -2,49 +2,127 @@ package peer;
 
 import utils.Logger;
 import utils.ConfigReader;
+import utils.MetricsExporter;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * One peer process: listens on a single port and hosts one or more swarms on it.
+ *
+ * Outgoing connections are opened per swarm; accepted ones are routed to a swarm by the
+ * info-hash in the remote's handshake. A swarm finishes once all of its peers are complete;
+ * awaitFinished() returns when every swarm has, and close() stops the process without
+ * exiting the JVM.
+ */
 public class PeerProcess {
 
     private static final int THREAD_POOL_SIZE = 10;
     private final int peerId;
     private final int port;
-    private final List<Integer> knownPeers; // list of peer IDs this peer can connect to
-    private PeerState peerState;
-    private UploadManager uploadManager;
+    private final List<Swarm> swarms = new ArrayList<>();
+    private final Map<Long, Swarm> swarmsByHash = new HashMap<>();
+    private final int maxOutstandingRequests;
+    private final String networkEngine; // "blocking" (thread per connection) or "nio"
+    private final int nioThreads;
+    private final String threadMode; // "platform" or "virtual"
+    private final int maxQueuedBytes;
+    private final int checkpointInterval; // seconds
+    private final AtomicInteger runningSwarms = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<Thread> uploadThreads = new ArrayList<>();
     private ExecutorService threadPool;
+    private Executor writerExecutor;
+    private ServerSocketChannel serverChannel;
+    private NioEngine nioEngine;
+    private ScheduledExecutorService checkpoints;
 
-    public PeerProcess(int peerId, int port, List<Integer> knownPeers, PeerState peerState) {
+    public PeerProcess(int peerId, int port, int maxOutstandingRequests, String networkEngine, int nioThreads, String threadMode,
+                       int maxQueuedBytes, int checkpointInterval) {
         this.peerId = peerId;
         this.port = port;
-        this.knownPeers = knownPeers;
-        this.peerState = peerState;
-        this.uploadManager = new UploadManager(new ArrayList<>(knownPeers), peerId);
-        this.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        this.maxOutstandingRequests = maxOutstandingRequests;
+        this.networkEngine = networkEngine;
+        this.nioThreads = nioThreads;
+        this.threadMode = threadMode;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    // Swarms are added before start()
+    public void addSwarm(Swarm swarm) {
+        if (swarmsByHash.putIfAbsent(swarm.getInfoHash(), swarm) != null)
+            throw new IllegalArgumentException("Two swarms share info-hash " + Long.toHexString(swarm.getInfoHash()));
+        swarms.add(swarm);
+    }
+
+    // A handshake without an info-hash can only mean a lone swarm
+    private Swarm findSwarm(long infoHash) {
+        if (infoHash == 0 && swarms.size() == 1) return swarms.get(0);
+        return swarmsByHash.get(infoHash);
+    }
+
+    private ConnectionHandler newHandler(Socket socket, Swarm swarm) {
+        return new ConnectionHandler(socket, peerId, swarm, this::findSwarm, swarm != null, maxOutstandingRequests, maxQueuedBytes, writerExecutor);
     }
 
     public void start() throws IOException {
-        // Start the upload manager thread
-        new Thread(uploadManager).start();
+        if (threadMode.equals("virtual")) {
+            // Acceptor, handlers and writers each get a virtual thread, so the number of
+            // connections is not capped by the pool size
+            this.threadPool = newVirtualThreadExecutor();
+            this.writerExecutor = threadPool;
+        } else {
+            this.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+            this.writerExecutor = task -> new Thread(task, "writer").start();
+        }
 
-        // Start server socket to accept incoming connections
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Peer " + peerId + " listening on port " + port);
+        // Start one upload manager thread per swarm. They stay platform threads in both modes:
+        // virtual threads are daemons, and these keep the JVM alive until every swarm is done.
+        runningSwarms.set(swarms.size());
+        for (Swarm swarm : swarms) {
+            Thread uploadThread = new Thread(() -> {
+                swarm.getUploadManager().run();
+                swarmFinished();
+            });
+            uploadThreads.add(uploadThread);
+            uploadThread.start();
+        }
+        startCheckpoints();
+        for (Swarm swarm : swarms) {
+            swarm.recheckRestoredPieces();
+        }
+
+        if (networkEngine.equals("nio")) {
+            startNio();
+            return;
+        }
+
+        // Start server socket to accept incoming connections. Sockets are opened through
+        // channels (in blocking mode) so uploads can use FileChannel.transferTo.
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Peer " + peerId + " listening on port " + port + " (" + swarms.size() + " swarms)");
 
         // Start background thread to accept incoming peers
         threadPool.submit(() -> {
             try {
                 while (!Thread.currentThread().isInterrupted()) {
-                    Socket socket = serverSocket.accept();
-                    // For incoming connections, create a ConnectionHandler with uploadManager
-                    ConnectionHandler handler = new ConnectionHandler(socket, peerId, peerState, uploadManager, false);
+                    Socket socket = serverChannel.accept().socket();
+                    // The swarm is only known after the remote's handshake
+                    ConnectionHandler handler = newHandler(socket, null);
                     threadPool.submit(handler);
                 }
             } catch (IOException e) {
@@ -52,33 +130,148 @@ public class PeerProcess {
             }
         });
 
-        // Connect to known peers (excluding self)
-        for (int remotePeerId : knownPeers) {
-            if (remotePeerId != this.peerId) {
-                // Assuming ports are mapped or known; simplify by using port + remotePeerId offset
-                int remotePort = port + (remotePeerId - peerId);
-                try {
-                    Socket socket = new Socket("localhost", remotePort);
-                    ConnectionHandler handler = new ConnectionHandler(socket, peerId, peerState, uploadManager, true);
-                    threadPool.submit(handler);
-                } catch (IOException e) {
-                    System.out.println("Failed to connect to peer " + remotePeerId + ": " + e.getMessage());
+        // Connect to known peers (excluding self), once per swarm
+        for (Swarm swarm : swarms) {
+            for (Map.Entry<Integer, InetSocketAddress> peer : swarm.getPeerAddresses().entrySet()) {
+                int remotePeerId = peer.getKey();
+                if (remotePeerId != this.peerId) {
+                    try {
+                        Socket socket = SocketChannel.open(peer.getValue()).socket();
+                        ConnectionHandler handler = newHandler(socket, swarm);
+                        threadPool.submit(handler);
+                    } catch (IOException e) {
+                        System.out.println("Failed to connect to peer " + remotePeerId + ": " + e.getMessage());
+                    }
                 }
             }
         }
     }
 
+    // Same connection pattern as start(), but every socket is served by a few selector threads
+    private void startNio() throws IOException {
+        NioEngine engine = new NioEngine(nioThreads, maxQueuedBytes, socket -> newHandler(socket, null));
+        nioEngine = engine;
+        engine.listen(port);
+        System.out.println("Peer " + peerId + " listening on port " + port + " (nio, " + nioThreads + " threads, " + swarms.size() + " swarms)");
+
+        for (Swarm swarm : swarms) {
+            for (Map.Entry<Integer, InetSocketAddress> peer : swarm.getPeerAddresses().entrySet()) {
+                int remotePeerId = peer.getKey();
+                if (remotePeerId != this.peerId) {
+                    try {
+                        engine.connect(peer.getValue(), socket -> newHandler(socket, swarm));
+                    } catch (IOException e) {
+                        System.out.println("Failed to connect to peer " + remotePeerId + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // One scheduler thread writes the checkpoints of every swarm
+    private void startCheckpoints() {
+        if (checkpointInterval <= 0) return;
+        checkpoints = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Swarm swarm : swarms) {
+            checkpoints.scheduleWithFixedDelay(swarm.getPeerState()::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    // A swarm is finished once all of its peers are complete; the process stays up for the others
+    private void swarmFinished() {
+        if (runningSwarms.decrementAndGet() == 0) {
+            finished.countDown();
+        }
+    }
+
+    public void awaitFinished() throws InterruptedException {
+        finished.await();
+    }
+
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    // Stops listening, drops every connection and closes the swarms' files. Threads are
+    // interrupted rather than waited for; a blocked connection thread exits once its
+    // socket is closed.
+    public void close() {
+        for (Thread uploadThread : uploadThreads) {
+            uploadThread.interrupt();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignore) {
+        }
+        if (nioEngine != null) nioEngine.close();
+        if (threadPool != null) threadPool.shutdownNow();
+        if (checkpoints != null) checkpoints.shutdownNow();
+        for (Swarm swarm : swarms) {
+            swarm.close();
+        }
+    }
+
+    // Virtual threads need Java 21; the build targets 17, so the factory is looked up at
+    // runtime and older JVMs fall back to an unbounded pool of platform threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on Java " + Runtime.version().feature()
+                    + "; using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
 
     public void announceIfSeeder() {
-        if (peerState.isComplete()) {
-            uploadManager.updatePeerCompletion(peerId, true);
-            //uploadManager.broadcastPeerCompleted(peerId);
-            System.out.println("[Peer " + peerId + "] Started with complete file; will announce on connections.");
+        for (Swarm swarm : swarms) {
+            swarm.announceIfSeeder();
         }
     }
 
 
 
+    // Seeders publish a manifest of their file; leechers use it to check what they download
+    private static PieceManifest loadManifest(ConfigReader cfg, PeerState peerState) {
+        String path = cfg.getManifestPath();
+        try {
+            if (new File(path).exists()) {
+                PieceManifest manifest = PieceManifest.load(path);
+                if (manifest.describes(cfg.getPieceSize(), cfg.getFileSize())) {
+                    return manifest;
+                }
+                System.out.println("Manifest " + path + " does not match Common.cfg");
+            }
+            if (peerState.isComplete()) {
+                PieceManifest manifest = PieceManifest.generate(peerState, cfg.getFileSize(), cfg.getHashAlgorithm(), cfg.getVerifyThreads());
+                manifest.save(path);
+                System.out.println("Wrote " + manifest.getAlgorithm() + " manifest for " + manifest.getNumPieces() + " pieces to " + path);
+                return manifest;
+            }
+        } catch (IOException e) {
+            System.out.println("Could not use manifest " + path + ": " + e.getMessage());
+        }
+        System.out.println("No piece manifest at " + path + "; received pieces will not be verified");
+        return null;
+    }
+
+    // Builds the initial bitfield from what is actually on disk, so neither a partial file
+    // nor a corrupt "complete" one is trusted blindly
+    private static void scanExistingFile(PeerState peerState, PieceManifest manifest, long fileSize, int threads) {
+        PieceScanner scanner = new PieceScanner(peerState.getFilePath(), peerState.getPieceSize(), fileSize);
+        try {
+            AtomicBitfield valid = scanner.scan(manifest, threads);
+            peerState.applyScan(valid);
+            System.out.println("Startup scan: " + valid.cardinality() + " of " + valid.size() + " pieces valid, " + scanner.throughput());
+        } catch (IOException e) {
+            System.out.println("Startup scan of " + peerState.getFilePath() + " failed: " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) {
 
         if (args.length != 1) {
@@ -94,16 +287,39 @@ public class PeerProcess {
                 peerId
         );
 
-        int port = cfg.getPort();
-        List<Integer> knownPeers = cfg.getKnownPeers();
+        if (cfg.getLogMode().equals("async")) {
+            Logger.startAsync(cfg.getLogQueueCapacity(), cfg.getLogQueueFullPolicy().equals("drop"));
+        }
 
-        PeerState peerState = cfg.buildPeerState();
-        PeerProcess peerProcess = new PeerProcess(peerId, port, knownPeers, peerState);
+        PeerProcess peerProcess = new PeerProcess(peerId, cfg.getPort(), cfg.getMaxOutstandingRequests(), cfg.getNetworkEngine(),
+                cfg.getNioThreads(), cfg.getThreadMode(), cfg.getMaxQueuedBytesPerPeer(), cfg.getCheckpointInterval());
+        // Shared by every swarm: hashing runs on one pool, unchokes draw on one budget. Piece
+        // writes run on that pool too unless DiskWriteQueue gives each swarm its own writer.
+        PieceVerifier.Pool verifyPool = PieceVerifier.newPool(cfg.getVerifyThreads());
+        UploadSlots uploadSlots = new UploadSlots(cfg.getMaxUploadSlots());
+        for (ConfigReader swarmCfg : cfg.getSwarmConfigs()) {
+            PeerState peerState = swarmCfg.buildPeerState();
+            Runtime.getRuntime().addShutdownHook(new Thread(peerState::close));
+            boolean manifestExists = new File(swarmCfg.getManifestPath()).exists();
+            PieceManifest manifest = loadManifest(swarmCfg, peerState);
+            if (manifestExists && manifest != null && swarmCfg.getStartupScan().equals("verify")) {
+                scanExistingFile(peerState, manifest, swarmCfg.getFileSize(), swarmCfg.getVerifyThreads());
+            }
+            PieceVerifier verifier = new PieceVerifier(manifest, verifyPool);
+            long infoHash = Swarm.infoHash(swarmCfg.getFileName(), swarmCfg.getFileSize(), swarmCfg.getPieceSize());
+            peerProcess.addSwarm(new Swarm(infoHash, peerId, swarmCfg.getKnownPeers(), swarmCfg.getPeerAddresses(), peerState, verifier,
+                    swarmCfg.getBlockSize(), swarmCfg.getHaveBatchWindow(), uploadSlots));
+        }
         peerProcess.announceIfSeeder();
         try {
+            new MetricsExporter(cfg.getStatsInterval(), cfg.getMetricsPort()).start();
             peerProcess.start();
+            peerProcess.awaitFinished();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        System.exit(0);
     }
 }
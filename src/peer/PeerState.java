@@ -1,85 +1,351 @@
 package peer;
 
-import java.io.File;
-import java.io.RandomAccessFile;
-import java.io.IOException;
-import java.util.Arrays;
-import java.security.MessageDigest;
+import utils.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 public class PeerState {
-    private boolean[] pieces;
+    private static final Metrics.Histogram DISK_READ = Metrics.histogram("disk_read_us");
+    private static final Metrics.Histogram DISK_WRITE = Metrics.histogram("disk_write_us");
+    private static final Metrics.Histogram DISK_TRANSFER = Metrics.histogram("disk_transfer_us"); // file -> socket
+
+    private AtomicBitfield pieces;
+    // Owned pieces known to be on the device: the file we started with, pieces restored clean,
+    // and pieces written durably or forced since. The rest are dirty in the checkpoint.
+    private final AtomicBitfield onDevice;
     private int pieceSize;
+    private long fileSize;
     private int peerId;
     private String fileName = "tree.jpg"; // default value for testing
+    private final String filePath;
+    private PieceStore store;
+    private PieceCache pieceCache; // null when uploads always read from the file
+    private DiskWriter diskWriter; // null when pieces are written on the thread that stores them
+    private boolean durableWrites; // the disk writer forces each piece to the device before it is owned
+    private final AtomicBoolean completionClaimed = new AtomicBoolean(false);
+
+    // Bitfield checkpoint kept next to the file so a restarted leecher resumes where it stopped
+    private final String checkpointPath;
+    private volatile boolean checkpointStale = false;
+    private final List<Integer> unverifiedPieces = new ArrayList<>();
+
+    public PeerState(int numPieces, boolean hasFullFile, int peerId, int pieceSize, String fileName, long fileSize) {
+        this(numPieces, hasFullFile, peerId, pieceSize, fileName, fileSize, "peer_" + peerId);
+    }
 
-    public PeerState(int numPieces, boolean hasFullFile, int peerId, int pieceSize, String fileName) {
+    // dir holds the file and its checkpoint; normally peer_<peerId> in the working directory
+    public PeerState(int numPieces, boolean hasFullFile, int peerId, int pieceSize, String fileName, long fileSize, String dir) {
         this.peerId = peerId;
         this.pieceSize = pieceSize;
+        this.fileSize = fileSize;
         this.fileName = fileName;
-        pieces = new boolean[numPieces];
-        Arrays.fill(pieces, hasFullFile);
+        pieces = new AtomicBitfield(numPieces);
+        onDevice = new AtomicBitfield(numPieces);
+        if (hasFullFile) {
+            pieces.setAll();
+            onDevice.setAll();
+        }
+        filePath = dir + "/" + fileName;
+        checkpointPath = filePath + ".bitfield";
+        try {
+            store = new PieceStore(filePath, pieceSize);
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening " + filePath + ": " + e.getMessage());
+        }
     }
 
-    public boolean[] getPieces() {
+    public AtomicBitfield getPieces() {
         return pieces;
     }
 
-    public byte[] getPieceData(int pieceIndex) {
-        try (RandomAccessFile raf = new RandomAccessFile("peer_" + peerId + "/" + fileName, "r")) {
-            long offset = (long) pieceIndex * pieceSize;
-            raf.seek(offset);
-            byte[] buffer = new byte[pieceSize];
-            int bytesRead = raf.read(buffer);
-            if (bytesRead < pieceSize) {
-                return Arrays.copyOf(buffer, bytesRead);
+    public String getFilePath() {
+        return filePath;
+    }
+
+    // Replaces what the peer believes it owns with the result of a startup scan; the scan
+    // also settles any restored pieces that were waiting to be re-checked
+    public synchronized void applyScan(AtomicBitfield valid) {
+        for (int i = 0; i < pieces.size(); i++) {
+            if (valid.get(i)) {
+                pieces.set(i);
+                onDevice.set(i);
+            } else {
+                pieces.clear(i);
+                onDevice.clear(i);
             }
-            return buffer;
+        }
+        unverifiedPieces.clear();
+        checkpointStale = true;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getNumPieces() {
+        return pieces.size();
+    }
+
+    public boolean hasPiece(int pieceIndex) {
+        return pieces.get(pieceIndex);
+    }
+
+    public byte[] getPieceData(int pieceIndex) {
+        long start = System.nanoTime();
+        try {
+            byte[] data = store.read(pieceIndex);
+            DISK_READ.record((System.nanoTime() - start) / 1000);
+            return data;
         } catch (IOException e) {
             e.printStackTrace();
             return new byte[0];
         }
     }
 
-    public void storePiece(int pieceIndex, byte[] data) {
-        pieces[pieceIndex] = true;
-        File dir = new File("peer_" + peerId);
-        if (!dir.exists()) dir.mkdirs();
-        String path = "peer_" + peerId + "/" + fileName;
-        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
-            long offset = (long) pieceIndex * pieceSize;
-            raf.seek(offset);
-            raf.write(data);
+    // Size of the piece in the complete file (the last piece is usually short)
+    public int getPieceLength(int pieceIndex) {
+        return (int) Math.max(0, Math.min(pieceSize, fileSize - (long) pieceIndex * pieceSize));
+    }
+
+    // Set once while the peer is being built, before any connection uploads
+    public void setPieceCache(PieceCache pieceCache) {
+        this.pieceCache = pieceCache;
+    }
+
+    // Reads a block into dst (e.g. a pooled frame) and returns the bytes read. With a cache,
+    // a piece that keeps missing is read whole so later requests for it come from memory.
+    public int readBlockInto(int pieceIndex, int begin, int length, byte[] dst, int dstOffset) {
+        PieceCache cache = pieceCache;
+        if (cache == null) return readFromFile(pieceIndex, begin, length, dst, dstOffset);
+        if (cache.readBlock(pieceIndex, begin, length, dst, dstOffset)) return length;
+        if (!cache.admit(pieceIndex)) return readFromFile(pieceIndex, begin, length, dst, dstOffset);
+        return loadIntoCache(cache, pieceIndex, begin, length, dst, dstOffset);
+    }
+
+    private int loadIntoCache(PieceCache cache, int pieceIndex, int begin, int length, byte[] dst, int dstOffset) {
+        int pieceLength = getPieceLength(pieceIndex);
+        byte[] piece = BufferPool.SHARED.acquire(pieceLength);
+        try {
+            int read = readFromFile(pieceIndex, 0, pieceLength, piece, 0);
+            if (read == pieceLength) cache.put(pieceIndex, piece, read);
+            int n = Math.max(0, Math.min(length, read - begin));
+            System.arraycopy(piece, begin, dst, dstOffset, n);
+            return n;
+        } finally {
+            BufferPool.SHARED.release(piece);
+        }
+    }
+
+    private int readFromFile(int pieceIndex, int begin, int length, byte[] dst, int dstOffset) {
+        long start = System.nanoTime();
+        try {
+            int read = store.readBlockInto(pieceIndex, begin, length, dst, dstOffset);
+            DISK_READ.record((System.nanoTime() - start) / 1000);
+            return read;
         } catch (IOException e) {
             e.printStackTrace();
+            return 0;
         }
     }
 
-    public boolean isComplete() {
-        for (boolean hasPiece : pieces) {
-            if (!hasPiece) return false;
+    // Sends a block to a blocking channel: a cache hit (or a piece the cache admits) is copied
+    // out of memory, anything else goes zero-copy from the file
+    public void transferBlock(int pieceIndex, int begin, int length, WritableByteChannel target) throws IOException {
+        PieceCache cache = pieceCache;
+        if (cache != null) {
+            byte[] block = BufferPool.SHARED.acquire(length);
+            try {
+                int read;
+                if (cache.readBlock(pieceIndex, begin, length, block, 0)) read = length;
+                else if (cache.admit(pieceIndex)) read = loadIntoCache(cache, pieceIndex, begin, length, block, 0);
+                else read = -1;
+                if (read >= 0) {
+                    if (read != length) throw new IOException("Piece " + pieceIndex + " is short on disk");
+                    ByteBuffer buffer = ByteBuffer.wrap(block, 0, read);
+                    while (buffer.hasRemaining()) target.write(buffer);
+                    return;
+                }
+            } finally {
+                BufferPool.SHARED.release(block);
+            }
+        }
+        long start = System.nanoTime();
+        store.transferTo(pieceIndex, begin, length, target);
+        DISK_TRANSFER.record((System.nanoTime() - start) / 1000);
+    }
+
+    // Set once while the peer is being built; see DiskWriter
+    public void startDiskWriter(int maxQueuedPieces, boolean syncEachBatch) {
+        diskWriter = new DiskWriter(store, maxQueuedPieces, syncEachBatch);
+        durableWrites = syncEachBatch;
+    }
+
+    // The data is written before the bit is set, so a checkpoint never lists a piece that
+    // was not handed to the OS. data may be a pooled array longer than the piece.
+    // Returns false if the write failed.
+    public boolean storePiece(int pieceIndex, byte[] data, int length) {
+        if (pieceCache != null) pieceCache.invalidate(pieceIndex);
+        long start = System.nanoTime();
+        try {
+            store.write(pieceIndex, data, length);
+            DISK_WRITE.record((System.nanoTime() - start) / 1000);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        own(pieceIndex, false);
         return true;
     }
 
-    public byte[] getBitfieldBytes() {
-        int neededLength = (int) Math.ceil(pieces.length / 8.0);
-        byte[] array = new byte[neededLength];
-        for (int i = 0; i < pieces.length; i++) {
-            if (pieces[i]) {
-                array[i / 8] |= (1 << (7 - (i % 8)));
+    // As above, but through the disk writer if there is one: this returns at once, and the
+    // piece is owned and onStored called on the writer thread after the write. data must
+    // not be reused before onStored runs.
+    public void storePiece(int pieceIndex, byte[] data, int length, Consumer<Boolean> onStored) {
+        if (diskWriter == null) {
+            onStored.accept(storePiece(pieceIndex, data, length));
+            return;
+        }
+        if (pieceCache != null) pieceCache.invalidate(pieceIndex);
+        diskWriter.submit(pieceIndex, data, length, written -> {
+            if (written) own(pieceIndex, durableWrites);
+            onStored.accept(written);
+        });
+    }
+
+    private void own(int pieceIndex, boolean synced) {
+        if (synced) onDevice.set(pieceIndex);
+        if (pieces.set(pieceIndex)) checkpointStale = true;
+    }
+
+    // Loads the checkpoint from a previous run. Clean pieces were on the device when it was
+    // written and are trusted. Dirty ones (restored pieces still waiting for their check)
+    // are left out of the bitfield and handed back by getUnverifiedPieces() to be checked.
+    public void restoreCheckpoint() {
+        File file = new File(checkpointPath);
+        if (!file.exists()) return;
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            int numPieces = Integer.parseInt(checkpointValue(br.readLine(), "Pieces"));
+            if (numPieces != pieces.size()) {
+                System.out.println("Ignoring " + checkpointPath + ": it has " + numPieces + " pieces, expected " + pieces.size());
+                return;
             }
+            AtomicBitfield owned = AtomicBitfield.fromBytes(HexFormat.of().parseHex(checkpointValue(br.readLine(), "Owned")), numPieces);
+            AtomicBitfield dirty = AtomicBitfield.fromBytes(HexFormat.of().parseHex(checkpointValue(br.readLine(), "Dirty")), numPieces);
+            synchronized (this) {
+                for (int i = owned.nextSetBit(0); i != -1; i = owned.nextSetBit(i + 1)) {
+                    if (dirty.get(i)) {
+                        unverifiedPieces.add(i);
+                    } else {
+                        pieces.set(i);
+                        onDevice.set(i);
+                    }
+                }
+            }
+            System.out.println("Resumed " + pieces.cardinality() + " pieces from " + checkpointPath
+                    + (unverifiedPieces.isEmpty() ? "" : " (" + unverifiedPieces.size() + " to re-check)"));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable checkpoint " + checkpointPath + ": " + e.getMessage());
         }
-        return array;
     }
 
-    public int getNumberOfPiecesOwned() {
-        int count = 0;
-        for (boolean hasPiece : pieces) {  // assuming you have boolean[] pieces
-            if (hasPiece) count++;
+    public synchronized List<Integer> getUnverifiedPieces() {
+        return new ArrayList<>(unverifiedPieces);
+    }
+
+    // Result of re-checking a restored piece: a good one becomes owned, a bad one is downloaded again
+    public void restoredPieceChecked(int pieceIndex, boolean valid) {
+        synchronized (this) {
+            unverifiedPieces.remove(Integer.valueOf(pieceIndex));
         }
-        return count;
+        // It survived a previous run, so it is on the device
+        if (valid) own(pieceIndex, true);
+        else checkpointStale = true;
     }
 
+    // Writes the checkpoint if pieces were added since the last one. Nothing is forced here:
+    // pieces written since the file was last forced are listed as dirty, so after a crash
+    // they are re-hashed (or downloaded again without a manifest) instead of trusted. The
+    // file is forced once, at close, unless DiskSync already forces every batch.
+    public void checkpoint() {
+        if (checkpointStale) writeCheckpoint();
+    }
+
+    private synchronized void writeCheckpoint() {
+        checkpointStale = false;
+        // onDevice first: a piece owned in between is listed dirty, never clean too early
+        byte[] clean = onDevice.toBytes();
+        byte[] owned = pieces.toBytes();
+        byte[] dirty = new byte[owned.length];
+        for (int i = 0; i < owned.length; i++) {
+            dirty[i] = (byte) (owned[i] & ~clean[i]);
+        }
+        // Unverified restored pieces stay in the checkpoint, dirty, until they are checked
+        for (int index : unverifiedPieces) {
+            owned[index >>> 3] |= (byte) (0x80 >>> (index & 7));
+            dirty[index >>> 3] |= (byte) (0x80 >>> (index & 7));
+        }
+        File tmp = new File(checkpointPath + ".tmp");
+        try {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+                writer.write("Pieces " + pieces.size());
+                writer.newLine();
+                writer.write("Owned " + HexFormat.of().formatHex(owned));
+                writer.newLine();
+                writer.write("Dirty " + HexFormat.of().formatHex(dirty));
+                writer.newLine();
+            }
+            Files.move(tmp.toPath(), Paths.get(checkpointPath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            checkpointStale = true;
+            System.out.println("Could not write checkpoint " + checkpointPath + ": " + e.getMessage());
+        }
+    }
+
+    // Queued writes are finished first, then the file is forced, so the final checkpoint
+    // lists every piece as clean
+    public void close() {
+        if (diskWriter != null) diskWriter.close();
+        try {
+            store.force();
+            for (int i = pieces.nextSetBit(0); i != -1; i = pieces.nextSetBit(i + 1)) onDevice.set(i);
+        } catch (IOException e) {
+            System.out.println("Could not flush " + filePath + ": " + e.getMessage());
+        }
+        writeCheckpoint();
+        store.close();
+    }
+
+    public boolean isComplete() {
+        return pieces.isFull();
+    }
+
+    // True for exactly one caller once the download finishes, so completion is announced once
+    public boolean claimCompletion() {
+        return isComplete() && completionClaimed.compareAndSet(false, true);
+    }
+
+    public byte[] getBitfieldBytes() {
+        return pieces.toBytes();
+    }
+
+    public int getNumberOfPiecesOwned() {
+        return pieces.cardinality();
+    }
+
+    private static String checkpointValue(String line, String key) throws IOException {
+        if (line == null) throw new IOException("missing " + key);
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 2 || !parts[0].equals(key)) throw new IOException("expected " + key + ", got: " + line);
+        return parts[1];
+    }
 }
@@ -0,0 +1,143 @@
+package peer;
+
+import utils.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory copy of the pieces a peer uploads most, so a seeder serving the same
+ * pieces to many leechers reads each one from disk once rather than once per request.
+ *
+ * Pieces live off-heap in one direct slab cut into piece-sized slots, which keeps large
+ * caches out of the garbage collector's way. Eviction is segmented LRU: a piece enters a
+ * probation segment and moves to the protected segment (80% of the slots) on its next hit.
+ * Victims come from probation first, so a run of pieces requested once (e.g. one leecher
+ * catching up) cannot flush the pieces the whole swarm keeps asking for.
+ *
+ * A piece is only worth loading whole once it has missed twice: the first miss is remembered
+ * (see admit) and the caller serves it straight from the file, zero-copy where it can.
+ */
+public class PieceCache {
+
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final Metrics.Counter HITS = Metrics.counter("piece_cache_hits");
+    private static final Metrics.Counter MISSES = Metrics.counter("piece_cache_misses");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter("piece_cache_evictions");
+
+    private static class Entry {
+        final int slot;
+        final int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    private final int pieceSize;
+    private final ByteBuffer slab;
+    private final int protectedCapacity;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    // Access-ordered, least recently used first
+    private final LinkedHashMap<Integer, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    // Pieces that missed once and were not loaded, oldest first, bounded to a few times the slots
+    private final LinkedHashMap<Integer, Boolean> missedOnce;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Returns null if the budget holds fewer than two pieces, i.e. the cache is off
+    public static PieceCache create(long budgetBytes, int pieceSize) {
+        long slots = Math.min(budgetBytes, Integer.MAX_VALUE) / pieceSize;
+        return slots < 2 ? null : new PieceCache((int) slots, pieceSize);
+    }
+
+    private PieceCache(int slots, int pieceSize) {
+        this.pieceSize = pieceSize;
+        this.slab = ByteBuffer.allocateDirect(slots * pieceSize);
+        this.protectedCapacity = Math.max(1, (int) (slots * PROTECTED_SHARE));
+        int remembered = slots * 4;
+        this.missedOnce = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > remembered;
+            }
+        };
+        for (int i = 0; i < slots; i++) freeSlots.add(i);
+    }
+
+    // Copies length bytes at begin of a cached piece into dst. Returns false on a miss.
+    public boolean readBlock(int pieceIndex, int begin, int length, byte[] dst, int dstOffset) {
+        lock.lock();
+        try {
+            Entry entry = probation.remove(pieceIndex);
+            if (entry != null) {
+                protectedSegment.put(pieceIndex, entry);
+                if (protectedSegment.size() > protectedCapacity) {
+                    // The least recently used protected piece gets another chance in probation
+                    int demoted = eldest(protectedSegment);
+                    probation.put(demoted, protectedSegment.remove(demoted));
+                }
+            } else {
+                entry = protectedSegment.get(pieceIndex);
+            }
+            if (entry == null || begin < 0 || (long) begin + length > entry.length) {
+                MISSES.increment();
+                return false;
+            }
+            slab.get(entry.slot * pieceSize + begin, dst, dstOffset, length);
+            HITS.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called after a miss: true if the piece missed recently too and should be read whole and
+    // put in the cache, false if this is its first miss and only the block should be read
+    public boolean admit(int pieceIndex) {
+        lock.lock();
+        try {
+            return missedOnce.remove(pieceIndex) != null || missedOnce.put(pieceIndex, Boolean.TRUE) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a piece just read from disk (the first length bytes of data)
+    public void put(int pieceIndex, byte[] data, int length) {
+        lock.lock();
+        try {
+            if (probation.containsKey(pieceIndex) || protectedSegment.containsKey(pieceIndex)) return;
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                Map<Integer, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+                slot = segment.remove(eldest(segment)).slot;
+                EVICTIONS.increment();
+            }
+            slab.put(slot * pieceSize, data, 0, length);
+            probation.put(pieceIndex, new Entry(slot, length));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops a piece whose data on disk is being replaced
+    public void invalidate(int pieceIndex) {
+        lock.lock();
+        try {
+            Entry entry = probation.remove(pieceIndex);
+            if (entry == null) entry = protectedSegment.remove(pieceIndex);
+            if (entry != null) freeSlots.add(entry.slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int eldest(Map<Integer, Entry> segment) {
+        return segment.keySet().iterator().next();
+    }
+}
@@ -0,0 +1,8 @@
+package peer;
+
+// Told about every downloaded piece once it is verified and written to disk
+public interface PieceListener {
+
+    // latencyNanos runs from the first request for one of the piece's blocks to the write
+    void pieceStored(int pieceIndex, int length, long latencyNanos);
+}
@@ -0,0 +1,126 @@
+package peer;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Per-piece digests of the shared file, generated by a seeder from its copy.
+ *
+ * Stored as a small text file next to the configs (header lines in the same
+ * "Key value" style as Common.cfg, then one hex digest per piece). The digest algorithm
+ * is any MessageDigest name, SHA-256 by default.
+ */
+public class PieceManifest {
+
+    private final String algorithm;
+    private final int pieceSize;
+    private final long fileSize;
+    private final byte[][] digests;
+    private final ThreadLocal<MessageDigest> digest;
+
+    public PieceManifest(String algorithm, int pieceSize, long fileSize, byte[][] digests) {
+        this.algorithm = algorithm;
+        this.pieceSize = pieceSize;
+        this.fileSize = fileSize;
+        this.digests = digests;
+        this.digest = ThreadLocal.withInitial(() -> newDigest(algorithm));
+        newDigest(algorithm); // fail fast on an unknown algorithm
+    }
+
+    // Hashes every piece of the seeder's file, in parallel
+    public static PieceManifest generate(PeerState peerState, long fileSize, String algorithm, int parallelism) throws IOException {
+        newDigest(algorithm);
+        PieceScanner scanner = new PieceScanner(peerState.getFilePath(), peerState.getPieceSize(), fileSize);
+        byte[][] digests = scanner.digestAll(algorithm, parallelism);
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i] == null) throw new IOException("File is shorter than FileSize; piece " + i + " is missing");
+        }
+        System.out.println("Manifest: " + scanner.throughput());
+        return new PieceManifest(algorithm, peerState.getPieceSize(), fileSize, digests);
+    }
+
+    public static PieceManifest load(String path) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String algorithm = value(br.readLine(), "Algorithm");
+            int pieceSize = Integer.parseInt(value(br.readLine(), "PieceSize"));
+            long fileSize = Long.parseLong(value(br.readLine(), "FileSize"));
+            int numPieces = Integer.parseInt(value(br.readLine(), "Pieces"));
+            byte[][] digests = new byte[numPieces][];
+            for (int i = 0; i < numPieces; i++) {
+                String line = br.readLine();
+                if (line == null) throw new IOException("Manifest ends after " + i + " of " + numPieces + " digests");
+                digests[i] = HexFormat.of().parseHex(line.trim());
+            }
+            return new PieceManifest(algorithm, pieceSize, fileSize, digests);
+        }
+    }
+
+    // Written to a temp file and renamed so readers never see a half-written manifest
+    public void save(String path) throws IOException {
+        File target = new File(path);
+        File tmp = new File(path + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            writer.write("Algorithm " + algorithm);
+            writer.newLine();
+            writer.write("PieceSize " + pieceSize);
+            writer.newLine();
+            writer.write("FileSize " + fileSize);
+            writer.newLine();
+            writer.write("Pieces " + digests.length);
+            writer.newLine();
+            for (byte[] d : digests) {
+                writer.write(HexFormat.of().formatHex(d));
+                writer.newLine();
+            }
+        }
+        if (!tmp.renameTo(target)) throw new IOException("Could not rename " + tmp + " to " + target);
+    }
+
+    public boolean matches(int pieceIndex, byte[] data) {
+        return matches(pieceIndex, data, data.length);
+    }
+
+    // Hashes only the first length bytes, for pooled arrays longer than the piece
+    public boolean matches(int pieceIndex, byte[] data, int length) {
+        if (pieceIndex < 0 || pieceIndex >= digests.length) return false;
+        MessageDigest md = digest.get();
+        md.update(data, 0, length);
+        return Arrays.equals(md.digest(), digests[pieceIndex]);
+    }
+
+    public boolean matchesDigest(int pieceIndex, byte[] digest) {
+        if (pieceIndex < 0 || pieceIndex >= digests.length) return false;
+        return Arrays.equals(digest, digests[pieceIndex]);
+    }
+
+    // True if this manifest describes the file the peer was configured with
+    public boolean describes(int pieceSize, long fileSize) {
+        return this.pieceSize == pieceSize && this.fileSize == fileSize;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getNumPieces() {
+        return digests.length;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm " + algorithm);
+        }
+    }
+
+    private static String value(String line, String key) throws IOException {
+        if (line == null) throw new IOException("Manifest is missing " + key);
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 2 || !parts[0].equals(key)) throw new IOException("Expected " + key + " in manifest, got: " + line);
+        return parts[1];
+    }
+}
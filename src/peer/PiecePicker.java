@@ -0,0 +1,377 @@
+package peer;
+
+import utils.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Shared piece selection for all connections of a peer.
+ *
+ * Keeps a count of how many connected peers have each piece (from BITFIELD and HAVE)
+ * and hands out rarest-first assignments. Pieces we still need and nobody has started
+ * are queued; those some connected peer has are kept in a tree ordered by (availability,
+ * random rank), so reservations and availability updates are O(log n). Pieces nobody has
+ * stay out of the tree. A pick walks the tree for at most MAX_SCAN pieces the remote lacks;
+ * past that (a remote with few of the pieces we need) it intersects the queue with the
+ * remote's bitfield a word at a time from a random point and takes the rarest of the first
+ * MAX_SCAN matches, so a pick never walks the whole tree.
+ *
+ * Availability counts only bitfields registered with addBitfield. A HAVE sets the remote's
+ * bit through addHave under the picker's lock, so it cannot race with removeBitfield.
+ *
+ * Pieces are transferred in blocks of blockSize bytes. A started piece keeps a reassembly
+ * buffer and per-block state until its last block arrives, and any connection whose
+ * remote has the piece can fetch its remaining blocks, so one piece may come from several
+ * peers. Started pieces are finished before new ones are opened.
+ *
+ * Once every missing block is already requested from someone the picker is in endgame:
+ * a pick may hand out a block that is requested from other peers too, so a slow peer
+ * cannot hold up the last pieces. The first copy to arrive wins and the other holders
+ * are sent CANCEL.
+ */
+public class PiecePicker {
+
+    private static final int MAX_SCAN = 64;
+
+    // A block reserved for one connection to request
+    public static class Block {
+        final int pieceIndex;
+        final int begin;
+        final int length;
+
+        Block(int pieceIndex, int begin, int length) {
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
+            this.length = length;
+        }
+    }
+
+    // Outcome of an accepted block
+    public static class Received {
+        final byte[] piece;                  // the assembled piece once its last block is in, else null;
+                                             // a pooled array, to be released once stored or rejected
+        final int pieceLength;
+        final List<Integer> duplicateHolders; // other peers the block was also requested from
+        final Set<Integer> sources;          // peers that supplied blocks of this piece
+        final long startedNanos;             // when the piece's first block was reserved
+
+        Received(byte[] piece, int pieceLength, List<Integer> duplicateHolders, Set<Integer> sources, long startedNanos) {
+            this.piece = piece;
+            this.pieceLength = pieceLength;
+            this.duplicateHolders = duplicateHolders;
+            this.sources = sources;
+            this.startedNanos = startedNanos;
+        }
+    }
+
+    // Reassembly state of a piece that has been started
+    private class PartialPiece {
+        final int index;
+        final int length;
+        final byte[] data;
+        final boolean[] received;
+        final List<Set<Integer>> holders = new ArrayList<>(); // per block: peers it is requested from
+        final Set<Integer> sources = new HashSet<>();
+        final long startedNanos = System.nanoTime();
+        int receivedCount = 0;
+
+        PartialPiece(int index, int length) {
+            this.index = index;
+            this.length = length;
+            this.data = BufferPool.SHARED.acquire(length);
+            int numBlocks = Math.max(1, (length + blockSize - 1) / blockSize);
+            this.received = new boolean[numBlocks];
+            for (int b = 0; b < numBlocks; b++) holders.add(new HashSet<>());
+        }
+
+        int blockLength(int block) {
+            return Math.min(blockSize, length - block * blockSize);
+        }
+
+        int unrequestedBlock() {
+            for (int b = 0; b < received.length; b++) {
+                if (!received[b] && holders.get(b).isEmpty()) return b;
+            }
+            return -1;
+        }
+
+        boolean idle() {
+            if (receivedCount > 0) return false;
+            for (Set<Integer> h : holders) {
+                if (!h.isEmpty()) return false;
+            }
+            return true;
+        }
+    }
+
+    private final PeerState peerState;
+    private final int blockSize;
+    private final int[] availability;
+    private final int[] rank;                 // random tie-breaker between equally rare pieces
+    private final boolean[] owned;
+    private final boolean[] verifying;        // assembled, waiting for its hash check
+    private final AtomicBitfield queued;      // needed and not started
+    private int waiting = 0;                  // queued pieces, including those nobody has
+    private final Comparator<Integer> rarer;  // by availability, then rank
+    private final TreeSet<Integer> candidates; // queued pieces with availability > 0
+    private final Set<AtomicBitfield> registered = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Integer, PartialPiece> partials = new LinkedHashMap<>(); // oldest first
+    private final Map<Integer, Map<Long, Long>> reservations = new HashMap<>(); // peer -> block key -> reserved at
+    private final Metrics.Histogram requestLatency = Metrics.histogram("request_latency_us");
+
+    public PiecePicker(PeerState peerState, int blockSize) {
+        this.peerState = peerState;
+        this.blockSize = blockSize;
+        int numPieces = peerState.getNumPieces();
+        availability = new int[numPieces];
+        owned = new boolean[numPieces];
+        verifying = new boolean[numPieces];
+        queued = new AtomicBitfield(numPieces);
+        for (int i = 0; i < numPieces; i++) owned[i] = peerState.hasPiece(i);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < numPieces; i++) order.add(i);
+        Collections.shuffle(order);
+        rank = new int[numPieces];
+        for (int r = 0; r < numPieces; r++) rank[order.get(r)] = r;
+
+        rarer = (a, b) -> {
+            if (availability[a] != availability[b]) return Integer.compare(availability[a], availability[b]);
+            return Integer.compare(rank[a], rank[b]);
+        };
+        candidates = new TreeSet<>(rarer);
+        for (int i = 0; i < numPieces; i++) {
+            if (!owned[i]) enqueue(i);
+        }
+    }
+
+    // Counts a remote's pieces until removeBitfield; registering the same bitfield twice is a no-op
+    public synchronized void addBitfield(AtomicBitfield bitfield) {
+        if (!registered.add(bitfield)) return;
+        for (int i = bitfield.nextSetBit(0); i != -1; i = bitfield.nextSetBit(i + 1)) {
+            changeAvailability(i, 1);
+        }
+    }
+
+    // Called on disconnect with the remote's last known bitfield
+    public synchronized void removeBitfield(AtomicBitfield bitfield) {
+        if (!registered.remove(bitfield)) return;
+        for (int i = bitfield.nextSetBit(0); i != -1; i = bitfield.nextSetBit(i + 1)) {
+            changeAvailability(i, -1);
+        }
+    }
+
+    // Sets the piece in the remote's bitfield and counts it if the bitfield is registered.
+    // Returns true if the remote did not have the piece before.
+    public synchronized boolean addHave(AtomicBitfield bitfield, int pieceIndex) {
+        if (!bitfield.set(pieceIndex)) return false;
+        if (registered.contains(bitfield)) changeAvailability(pieceIndex, 1);
+        return true;
+    }
+
+    // Reserves the next block to request from the remote: an unrequested block of a started
+    // piece it has, else the first block of the rarest new piece it has. In endgame it falls
+    // back to the outstanding block with the fewest holders. Returns null if there is none.
+    public synchronized Block pick(int peerId, AtomicBitfield remoteBitfield) {
+        for (PartialPiece partial : partials.values()) {
+            if (!remoteBitfield.get(partial.index)) continue;
+            int block = partial.unrequestedBlock();
+            if (block != -1) return reserve(peerId, partial, block);
+        }
+        int scanned = 0;
+        for (int index : candidates) {
+            if (remoteBitfield.get(index)) return start(peerId, index);
+            if (++scanned == MAX_SCAN) break;
+        }
+        if (scanned == MAX_SCAN) {
+            int index = rarestShared(remoteBitfield);
+            if (index != -1) return start(peerId, index);
+        }
+        if (waiting > 0) return null;
+
+        PartialPiece bestPiece = null;
+        int bestBlock = -1;
+        for (PartialPiece partial : partials.values()) {
+            if (!remoteBitfield.get(partial.index)) continue;
+            for (int b = 0; b < partial.received.length; b++) {
+                Set<Integer> blockHolders = partial.holders.get(b);
+                if (partial.received[b] || blockHolders.contains(peerId)) continue;
+                if (bestPiece == null || blockHolders.size() < bestPiece.holders.get(bestBlock).size()) {
+                    bestPiece = partial;
+                    bestBlock = b;
+                }
+            }
+        }
+        return bestPiece == null ? null : reserve(peerId, bestPiece, bestBlock);
+    }
+
+    // Copies a block from peerId (length bytes of buf at offset) into its piece's buffer.
+    // Returns null if the block was not wanted (unknown, malformed or already received);
+    // otherwise the result says whether it completed the piece, which then waits for its
+    // hash check.
+    public synchronized Received blockReceived(int peerId, int pieceIndex, int begin, byte[] buf, int offset, int length) {
+        if (pieceIndex < 0 || pieceIndex >= owned.length || begin < 0 || begin % blockSize != 0) return null;
+        int block = begin / blockSize;
+        Map<Long, Long> held = reservations.get(peerId);
+        Long requestedAt = held == null ? null : held.remove(key(pieceIndex, block));
+        if (requestedAt != null) requestLatency.record((System.nanoTime() - requestedAt) / 1000);
+
+        PartialPiece partial = partials.get(pieceIndex);
+        if (partial == null || block >= partial.received.length) return null;
+        Set<Integer> blockHolders = partial.holders.get(block);
+        blockHolders.remove(peerId);
+        if (partial.received[block] || length != partial.blockLength(block)) return null;
+
+        System.arraycopy(buf, offset, partial.data, begin, length);
+        partial.received[block] = true;
+        partial.receivedCount++;
+        partial.sources.add(peerId);
+        List<Integer> duplicates = new ArrayList<>(blockHolders);
+        for (int other : duplicates) {
+            Map<Long, Long> otherHeld = reservations.get(other);
+            if (otherHeld != null) otherHeld.remove(key(pieceIndex, block));
+        }
+        blockHolders.clear();
+
+        if (partial.receivedCount < partial.received.length) {
+            return new Received(null, 0, duplicates, partial.sources, partial.startedNanos);
+        }
+        partials.remove(pieceIndex);
+        verifying[pieceIndex] = true;
+        return new Received(partial.data, partial.length, duplicates, partial.sources, partial.startedNanos);
+    }
+
+    // Returns every block reserved by the peer to the pool (CHOKE or disconnect). Blocks it
+    // already delivered stay in their piece's buffer.
+    public synchronized void releaseAll(int peerId) {
+        Map<Long, Long> held = reservations.remove(peerId);
+        if (held == null) return;
+        for (long key : held.keySet()) {
+            int index = (int) (key >>> 32);
+            PartialPiece partial = partials.get(index);
+            if (partial == null) continue;
+            partial.holders.get((int) key).remove(peerId);
+            if (partial.idle()) {
+                partials.remove(index);
+                BufferPool.SHARED.release(partial.data);
+                requeue(index);
+            }
+        }
+    }
+
+    // Takes a whole piece out of circulation while its hash is checked (e.g. a piece restored
+    // from disk). Returns false if the piece is already owned or being checked.
+    public synchronized boolean beginVerify(int pieceIndex) {
+        if (owned[pieceIndex] || verifying[pieceIndex]) return false;
+        verifying[pieceIndex] = true;
+        dequeue(pieceIndex);
+        dropPartial(pieceIndex);
+        return true;
+    }
+
+    // The assembled copy was corrupt; the piece can be requested again from anyone
+    public synchronized void verifyFailed(int pieceIndex) {
+        verifying[pieceIndex] = false;
+        requeue(pieceIndex);
+    }
+
+    public synchronized void markOwned(int pieceIndex) {
+        if (owned[pieceIndex]) return;
+        dequeue(pieceIndex);
+        owned[pieceIndex] = true;
+        verifying[pieceIndex] = false;
+        dropPartial(pieceIndex);
+    }
+
+    public synchronized int reservedCount(int peerId) {
+        Map<Long, Long> held = reservations.get(peerId);
+        return held == null ? 0 : held.size();
+    }
+
+    // Blocks requested from all peers and not yet delivered
+    public synchronized int totalReserved() {
+        int total = 0;
+        for (Map<Long, Long> held : reservations.values()) total += held.size();
+        return total;
+    }
+
+    private Block start(int peerId, int index) {
+        dequeue(index);
+        PartialPiece partial = new PartialPiece(index, peerState.getPieceLength(index));
+        partials.put(index, partial);
+        return reserve(peerId, partial, 0);
+    }
+
+    // The rarest of the first MAX_SCAN queued pieces the remote has, scanning from a random piece
+    private int rarestShared(AtomicBitfield remoteBitfield) {
+        int start = ThreadLocalRandom.current().nextInt(queued.size());
+        int best = -1;
+        int seen = 0;
+        boolean wrapped = false;
+        int index = queued.nextSetBitIn(remoteBitfield, start);
+        while (seen < MAX_SCAN) {
+            if (index == -1 || (wrapped && index >= start)) {
+                if (wrapped) break;
+                wrapped = true;
+                index = queued.nextSetBitIn(remoteBitfield, 0);
+                continue;
+            }
+            if (best == -1 || rarer.compare(index, best) < 0) best = index;
+            seen++;
+            index = queued.nextSetBitIn(remoteBitfield, index + 1);
+        }
+        return best;
+    }
+
+    private Block reserve(int peerId, PartialPiece partial, int block) {
+        partial.holders.get(block).add(peerId);
+        reservations.computeIfAbsent(peerId, k -> new HashMap<>()).put(key(partial.index, block), System.nanoTime());
+        return new Block(partial.index, block * blockSize, partial.blockLength(block));
+    }
+
+    private void dropPartial(int pieceIndex) {
+        PartialPiece partial = partials.remove(pieceIndex);
+        if (partial == null) return;
+        BufferPool.SHARED.release(partial.data);
+        for (int b = 0; b < partial.received.length; b++) {
+            for (int holder : partial.holders.get(b)) {
+                Map<Long, Long> held = reservations.get(holder);
+                if (held != null) held.remove(key(pieceIndex, b));
+            }
+        }
+    }
+
+    private void requeue(int pieceIndex) {
+        if (!owned[pieceIndex] && !verifying[pieceIndex] && !queued.get(pieceIndex) && !partials.containsKey(pieceIndex)) {
+            enqueue(pieceIndex);
+        }
+    }
+
+    private void enqueue(int pieceIndex) {
+        queued.set(pieceIndex);
+        waiting++;
+        if (availability[pieceIndex] > 0) candidates.add(pieceIndex);
+    }
+
+    private void dequeue(int pieceIndex) {
+        if (!queued.clear(pieceIndex)) return;
+        waiting--;
+        candidates.remove(pieceIndex);
+    }
+
+    private void changeAvailability(int pieceIndex, int delta) {
+        // The tree is ordered by availability, so the entry must be re-inserted around the update
+        int updated = availability[pieceIndex] + delta;
+        // Only registered bitfields are counted, so a negative count means the books are wrong
+        if (updated < 0) throw new IllegalStateException("Piece " + pieceIndex + " is held by " + updated + " peers");
+        boolean isQueued = queued.get(pieceIndex);
+        if (isQueued) candidates.remove(pieceIndex);
+        availability[pieceIndex] = updated;
+        if (isQueued && updated > 0) candidates.add(pieceIndex);
+    }
+
+    private static long key(int pieceIndex, int block) {
+        return ((long) pieceIndex << 32) | block;
+    }
+}
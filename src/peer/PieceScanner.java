@@ -0,0 +1,124 @@
+package peer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hashes every piece of a file on disk in parallel.
+ *
+ * The piece range is split in half recursively on a ForkJoinPool until a range covers at
+ * most LEAF_BYTES; each leaf maps its part of the file read-only and hashes the pieces
+ * straight out of the mapping. Used to check an existing file against the manifest at
+ * startup and to build the manifest on a seeder.
+ */
+public class PieceScanner {
+
+    private static final long LEAF_BYTES = 16L * 1024 * 1024;
+
+    private final String path;
+    private final int pieceSize;
+    private final long fileSize;
+    private final int numPieces;
+    private long bytesHashed;
+    private long elapsedNanos;
+
+    public PieceScanner(String path, int pieceSize, long fileSize) {
+        this.path = path;
+        this.pieceSize = pieceSize;
+        this.fileSize = fileSize;
+        this.numPieces = (int) Math.ceil((double) fileSize / pieceSize);
+    }
+
+    // One digest per piece; null where the file on disk is too short to hold the piece
+    public byte[][] digestAll(String algorithm, int parallelism) throws IOException {
+        byte[][] digests = new byte[numPieces][];
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long available = Math.min(fileSize, channel.size());
+            pool.invoke(new DigestTask(channel, available, algorithm, digests, 0, numPieces));
+            bytesHashed = available;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            elapsedNanos = System.nanoTime() - start;
+        }
+        return digests;
+    }
+
+    // Pieces of the file on disk that match the manifest
+    public AtomicBitfield scan(PieceManifest manifest, int parallelism) throws IOException {
+        byte[][] digests = digestAll(manifest.getAlgorithm(), parallelism);
+        AtomicBitfield valid = new AtomicBitfield(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (digests[i] != null && manifest.matchesDigest(i, digests[i])) valid.set(i);
+        }
+        return valid;
+    }
+
+    // Summary of the last run, e.g. "hashed 1.8 MB in 12 ms (150.3 MB/s)"
+    public String throughput() {
+        double mb = bytesHashed / (1024.0 * 1024.0);
+        double ms = elapsedNanos / 1_000_000.0;
+        double rate = ms > 0 ? mb / (ms / 1000.0) : 0;
+        return String.format("hashed %.1f MB in %.0f ms (%.1f MB/s)", mb, ms, rate);
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private class DigestTask extends RecursiveAction {
+        private final FileChannel channel;
+        private final long available;
+        private final String algorithm;
+        private final byte[][] digests;
+        private final int from;
+        private final int to;
+
+        DigestTask(FileChannel channel, long available, String algorithm, byte[][] digests, int from, int to) {
+            this.channel = channel;
+            this.available = available;
+            this.algorithm = algorithm;
+            this.digests = digests;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * pieceSize > LEAF_BYTES) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DigestTask(channel, available, algorithm, digests, from, mid),
+                        new DigestTask(channel, available, algorithm, digests, mid, to));
+                return;
+            }
+            long start = (long) from * pieceSize;
+            long end = Math.min((long) to * pieceSize, available);
+            if (end <= start) return;
+            try {
+                MessageDigest md = MessageDigest.getInstance(algorithm);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                for (int i = from; i < to; i++) {
+                    long offset = (long) i * pieceSize;
+                    long length = Math.min(pieceSize, fileSize - offset);
+                    if (offset + length > available) break;
+                    map.limit((int) (offset - start + length));
+                    map.position((int) (offset - start));
+                    md.update(map);
+                    digests[i] = md.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown hash algorithm " + algorithm);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Piece-addressed access to the shared file through one long-lived FileChannel.
+ *
+ * The file is opened once when the peer starts. All reads and writes use positional
+ * FileChannel I/O, which never moves a shared file pointer, so any number of connection
+ * threads can read and write different pieces at the same time without locking. The one
+ * exception is writeRun, whose gathering write uses the channel position; only the disk
+ * writer thread calls it.
+ */
+public class PieceStore {
+
+    private final FileChannel channel;
+    private final int pieceSize;
+
+    public PieceStore(String path, int pieceSize) throws IOException {
+        this.pieceSize = pieceSize;
+        File file = new File(path);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    // Reads up to one piece; the last piece of the file comes back shorter
+    public byte[] read(int pieceIndex) throws IOException {
+        long offset = (long) pieceIndex * pieceSize;
+        ByteBuffer buffer = ByteBuffer.allocate(pieceSize);
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, offset + buffer.position());
+            if (r == -1) break;
+        }
+        if (buffer.position() < pieceSize) {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        return buffer.array();
+    }
+
+    // Reads a block into dst at dstOffset and returns the bytes read (fewer if the file ends first)
+    public int readBlockInto(int pieceIndex, int begin, int length, byte[] dst, int dstOffset) throws IOException {
+        long offset = (long) pieceIndex * pieceSize + begin;
+        ByteBuffer buffer = ByteBuffer.wrap(dst, dstOffset, length);
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, offset + buffer.position() - dstOffset);
+            if (r == -1) break;
+        }
+        return buffer.position() - dstOffset;
+    }
+
+    // Writes the first length bytes of data as the piece
+    public void write(int pieceIndex, byte[] data, int length) throws IOException {
+        long offset = (long) pieceIndex * pieceSize;
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    // Writes consecutive pieces starting at firstIndex with as few write calls as the OS allows.
+    // Every piece but the last must be a full piece.
+    public void writeRun(int firstIndex, ByteBuffer[] pieces) throws IOException {
+        channel.position((long) firstIndex * pieceSize);
+        long remaining = 0;
+        for (ByteBuffer piece : pieces) remaining += piece.remaining();
+        while (remaining > 0) {
+            remaining -= channel.write(pieces);
+        }
+    }
+
+    // Streams a block from the page cache straight to the socket (sendfile where the OS has it).
+    // The target must be in blocking mode.
+    public void transferTo(int pieceIndex, int begin, int length, WritableByteChannel target) throws IOException {
+        long offset = (long) pieceIndex * pieceSize + begin;
+        long sent = 0;
+        while (sent < length) {
+            long n = channel.transferTo(offset + sent, length - sent, target);
+            if (n <= 0) throw new IOException("Piece " + pieceIndex + " transfer stalled");
+            sent += n;
+        }
+    }
+
+    // Flushes written pieces to the device
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
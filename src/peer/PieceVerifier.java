@@ -0,0 +1,118 @@
+package peer;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Checks received pieces against the manifest on a small worker pool, so hashing normally
+ * does not run on a socket read thread. Without a manifest every piece is accepted
+ * immediately on the caller's thread.
+ *
+ * Once QUEUED_PER_THREAD pieces per worker are waiting, the pool is saturated and
+ * connections stop reading until it catches up: a blocking-engine thread waits in awaitRoom,
+ * an NIO session drops read interest. Pieces are never hashed on the caller's thread, so an
+ * event loop never stalls on a digest. A connection can only add the pieces it had already
+ * read, which bounds the (pooled) piece buffers held by the backlog.
+ */
+public class PieceVerifier {
+
+    private static final int QUEUED_PER_THREAD = 4;
+
+    private final PieceManifest manifest;
+    private final Pool pool;
+
+    public PieceVerifier(PieceManifest manifest, int threads) {
+        this(manifest, manifest == null ? null : newPool(threads));
+    }
+
+    // Verifiers of several swarms can share one pool. Pieces stored inline (no DiskWriter) are
+    // written on it as well; with a DiskWriter each swarm writes on its own thread.
+    public PieceVerifier(PieceManifest manifest, Pool pool) {
+        this.manifest = manifest;
+        this.pool = manifest == null ? null : pool;
+    }
+
+    public static Pool newPool(int threads) {
+        return new Pool(Math.max(1, threads));
+    }
+
+    // Worker pool whose queue is unbounded, but reports when it is past its limit
+    public static class Pool extends ThreadPoolExecutor {
+        private final int limit;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition room = lock.newCondition();
+
+        Pool(int threads) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), task -> {
+                Thread t = new Thread(task, "piece-verifier");
+                t.setDaemon(true);
+                return t;
+            });
+            limit = threads * QUEUED_PER_THREAD;
+        }
+
+        public boolean isSaturated() {
+            return getQueue().size() >= limit;
+        }
+
+        public void awaitRoom() throws InterruptedException {
+            lock.lock();
+            try {
+                while (isSaturated()) room.await();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // A worker just took a piece off the queue
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            lock.lock();
+            try {
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return manifest != null;
+    }
+
+    public PieceManifest getManifest() {
+        return manifest;
+    }
+
+    // True while connections should stop reading pieces until the workers catch up
+    public boolean isSaturated() {
+        return pool != null && pool.isSaturated();
+    }
+
+    // Blocks until the workers have room; for threads that own a blocking socket
+    public void awaitRoom() throws InterruptedException {
+        if (pool != null) pool.awaitRoom();
+    }
+
+    // Calls onResult with true if the first length bytes of data match the piece's digest
+    public void verify(int pieceIndex, byte[] data, int length, Consumer<Boolean> onResult) {
+        if (manifest == null) {
+            onResult.accept(true);
+            return;
+        }
+        pool.execute(() -> onResult.accept(manifest.matches(pieceIndex, data, length)));
+    }
+
+    // Same check for a piece already on disk; the read happens on the worker too
+    public void verifyStored(PeerState peerState, int pieceIndex, Consumer<Boolean> onResult) {
+        if (manifest == null) {
+            onResult.accept(true);
+            return;
+        }
+        pool.execute(() -> onResult.accept(manifest.matches(pieceIndex, peerState.getPieceData(pieceIndex))));
+    }
+}
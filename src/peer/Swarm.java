@@ -0,0 +1,168 @@
+package peer;
+
+import utils.Logger;
+import utils.Metrics;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * One shared file and the per-file state a peer keeps for it: pieces on disk, piece
+ * picker, verifier and choking.
+ *
+ * A PeerProcess hosts one or more swarms on a single port. Each swarm is identified by an
+ * info-hash derived from its file's name, size and piece size; connections carry it in the
+ * handshake and are routed to the matching swarm. Network threads, buffers, the verifier
+ * pool and the upload-slot budget are shared between swarms.
+ */
+public class Swarm {
+
+    private final long infoHash;
+    private final int selfPeerId;
+    private final List<Integer> knownPeers;
+    private final Map<Integer, InetSocketAddress> peerAddresses; // peers to connect to
+    private final PeerState peerState;
+    private final PieceVerifier verifier;
+    private final UploadManager uploadManager;
+    private final PiecePicker piecePicker;
+    private volatile PieceListener pieceListener;
+    private final Set<ConnectionHandler> connections = ConcurrentHashMap.newKeySet(); // past their bitfield
+    private final LongSupplier outstandingRequests;
+    private final Metrics.Counter piecesDownloaded = Metrics.counter("pieces_downloaded");
+    private final Metrics.Histogram pieceLatency = Metrics.histogram("piece_latency_ms");
+
+    // knownPeers are all members of the swarm; the process opens connections to those in
+    // peerAddresses and accepts the rest
+    public Swarm(long infoHash, int selfPeerId, List<Integer> knownPeers, Map<Integer, InetSocketAddress> peerAddresses,
+                 PeerState peerState, PieceVerifier verifier, int blockSize, int haveBatchMillis, UploadSlots uploadSlots) {
+        this.infoHash = infoHash;
+        this.selfPeerId = selfPeerId;
+        this.knownPeers = knownPeers;
+        this.peerAddresses = peerAddresses;
+        this.peerState = peerState;
+        this.verifier = verifier;
+        this.uploadManager = new UploadManager(new ArrayList<>(knownPeers), selfPeerId, uploadSlots, haveBatchMillis);
+        this.piecePicker = new PiecePicker(peerState, blockSize);
+        this.outstandingRequests = piecePicker::totalReserved;
+        Metrics.gauge("requests_outstanding", outstandingRequests);
+    }
+
+    // First 8 bytes of SHA-256 over "fileName fileSize pieceSize"; never 0, which is reserved
+    public static long infoHash(String fileName, long fileSize, int pieceSize) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest((fileName + " " + fileSize + " " + pieceSize).getBytes(StandardCharsets.UTF_8));
+            long hash = ByteBuffer.wrap(digest).getLong();
+            return hash == 0 ? 1 : hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public long getInfoHash() {
+        return infoHash;
+    }
+
+    public List<Integer> getKnownPeers() {
+        return knownPeers;
+    }
+
+    public Map<Integer, InetSocketAddress> getPeerAddresses() {
+        return peerAddresses;
+    }
+
+    public void setPieceListener(PieceListener pieceListener) {
+        this.pieceListener = pieceListener;
+    }
+
+    void addConnection(ConnectionHandler connection) {
+        connections.add(connection);
+    }
+
+    void removeConnection(ConnectionHandler connection) {
+        connections.remove(connection);
+    }
+
+    // A piece just became ours: each connection updates what it still wants from its remote,
+    // and every remote is sent a HAVE
+    void announcePiece(int pieceIndex) {
+        for (ConnectionHandler connection : connections) {
+            connection.localPieceOwned(pieceIndex);
+        }
+        uploadManager.broadcastHave(pieceIndex);
+    }
+
+    // Called once a downloaded piece is verified and stored
+    void pieceStored(int pieceIndex, int length, long startedNanos) {
+        long latencyNanos = System.nanoTime() - startedNanos;
+        piecesDownloaded.increment();
+        pieceLatency.record(latencyNanos / 1_000_000);
+        PieceListener listener = pieceListener;
+        if (listener != null) listener.pieceStored(pieceIndex, length, latencyNanos);
+    }
+
+    public PeerState getPeerState() {
+        return peerState;
+    }
+
+    public PieceVerifier getVerifier() {
+        return verifier;
+    }
+
+    public UploadManager getUploadManager() {
+        return uploadManager;
+    }
+
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    // Restored pieces that may not have reached the disk before a crash are re-hashed in the
+    // background while the peer already serves and downloads everything else. Without a
+    // manifest they cannot be checked, so they are downloaded again.
+    public void recheckRestoredPieces() {
+        for (int index : peerState.getUnverifiedPieces()) {
+            if (!verifier.isEnabled() || !piecePicker.beginVerify(index)) {
+                peerState.restoredPieceChecked(index, false);
+                continue;
+            }
+            verifier.verifyStored(peerState, index, valid -> {
+                peerState.restoredPieceChecked(index, valid);
+                if (!valid) {
+                    piecePicker.verifyFailed(index);
+                    return;
+                }
+                piecePicker.markOwned(index);
+                announcePiece(index);
+                if (peerState.claimCompletion()) {
+                    Logger.log("Peer " + selfPeerId + " has downloaded the complete file.", selfPeerId);
+                    uploadManager.updatePeerCompletion(selfPeerId, true);
+                    uploadManager.broadcastPeerCompleted(selfPeerId);
+                }
+            });
+        }
+    }
+
+    // Flushes the file and stops reporting this swarm's gauges
+    public void close() {
+        Metrics.removeGauge("requests_outstanding", outstandingRequests);
+        peerState.close();
+    }
+
+    public void announceIfSeeder() {
+        if (peerState.isComplete()) {
+            uploadManager.updatePeerCompletion(selfPeerId, true);
+            //uploadManager.broadcastPeerCompleted(selfPeerId);
+            System.out.println("[Peer " + selfPeerId + "] Started with complete file; will announce on connections.");
+        }
+    }
+}
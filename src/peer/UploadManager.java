@@ -1,74 +1,169 @@
 package peer;
 
 import utils.Logger;
+import utils.Metrics;
 
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class UploadManager implements Runnable {
 
     private static final int PREFERRED_NEIGHBORS_COUNT = 4;
     private static final int UNCHOKE_INTERVAL_MS = 5000;
     private static final int OPTIMISTIC_UNCHOKE_INTERVAL_MS = 15000;
+    private static final Metrics.Counter CHOKES = Metrics.counter("chokes_sent");
+    private static final Metrics.Counter UNCHOKES = Metrics.counter("unchokes_sent");
+    private static final Metrics.Counter HAVES = Metrics.counter("haves_sent");
+    private static final Metrics.Counter HAVE_MESSAGES = Metrics.counter("have_messages_sent");
+    // Sends the HAVEs batched by every swarm of the process once their window closes
+    private static final ScheduledExecutorService HAVE_FLUSHER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "have-flush");
+        t.setDaemon(true);
+        return t;
+    });
     private Map<Integer, Boolean> peerCompletionMap = new ConcurrentHashMap<>();
-    private Map<Integer, Long> downloadRates = new HashMap<>();
+    private Map<Integer, Long> downloadRates = new HashMap<>(); // bytes/s over the last unchoking interval
+    private Map<Integer, Long> uploadRates = new HashMap<>();
+    private final Map<Integer, LongAdder> bytesDownloaded = new ConcurrentHashMap<>(); // since the last sample
+    private final Map<Integer, LongAdder> bytesUploaded = new ConcurrentHashMap<>();
+    private long lastRateSample = System.nanoTime();
     private Set<Integer> preferredNeighbors = new HashSet<>();
     private Integer optimisticNeighbor = null;
     private Map<Integer, Boolean> chokeStatus = new HashMap<>();
     private Map<Integer, Boolean> interestedStatus = new HashMap<>();
-    private Map<Integer, OutputStream> peerOutputs = new HashMap<>();
+    private Map<Integer, Outbound> peerOutputs = new HashMap<>();
     private volatile boolean shutdown = false;
     private final int selfPeerId;
+    private final UploadSlots uploadSlots; // shared with the other swarms of this process
+    private final int haveBatchMillis;
+    private final List<Integer> pendingHaves = new ArrayList<>(); // waiting for the batch window
+    private final Set<Integer> compactPeers = new HashSet<>();    // negotiated compact messages
 
 
-    private final Object lock = new Object();
+    private final ReentrantLock lock = new ReentrantLock();
 
-    public UploadManager(List<Integer> initialPeers, int selfPeerId) {
+    public UploadManager(List<Integer> initialPeers, int selfPeerId, UploadSlots uploadSlots) {
+        this(initialPeers, selfPeerId, uploadSlots, 0);
+    }
+
+    // haveBatchMillis > 0 holds new HAVEs for that long so they go out together
+    public UploadManager(List<Integer> initialPeers, int selfPeerId, UploadSlots uploadSlots, int haveBatchMillis) {
         this.selfPeerId = selfPeerId;
+        this.uploadSlots = uploadSlots;
+        this.haveBatchMillis = haveBatchMillis;
         for (Integer peerId : initialPeers) {
             chokeStatus.put(peerId, true);
             interestedStatus.put(peerId, false);
             downloadRates.put(peerId, 0L);
+            uploadRates.put(peerId, 0L);
             peerCompletionMap.put(peerId, false);
         }
     }
 
-    public void addPeer(int peerId, OutputStream outputStream) {
-        synchronized (lock) {
-            peerOutputs.put(peerId, outputStream);
+    public void addPeer(int peerId, Outbound outbound) {
+        addPeer(peerId, outbound, false);
+    }
+
+    // compactMessages: the connection negotiated HAVE_BATCH and COMPACT_BITFIELD
+    public void addPeer(int peerId, Outbound outbound, boolean compactMessages) {
+        lock.lock();
+        try {
+            peerOutputs.put(peerId, outbound);
+            if (compactMessages) compactPeers.add(peerId);
+            else compactPeers.remove(peerId);
             chokeStatus.putIfAbsent(peerId, true);
             interestedStatus.putIfAbsent(peerId, false);
             downloadRates.putIfAbsent(peerId, 0L);
+            uploadRates.putIfAbsent(peerId, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called when the connection closes. An unchoked peer gives its slot back at once, so the
+    // other swarms do not run one short until a choke round notices. A newer connection from
+    // the same peer (outbound differs) is left alone.
+    public void removePeer(int peerId, Outbound outbound) {
+        lock.lock();
+        try {
+            if (peerOutputs.get(peerId) != outbound) return;
+            peerOutputs.remove(peerId);
+            compactPeers.remove(peerId);
+            interestedStatus.remove(peerId);
+            Boolean choked = chokeStatus.remove(peerId);
+            if (choked != null && !choked) uploadSlots.release();
+            if (Integer.valueOf(peerId).equals(optimisticNeighbor)) optimisticNeighbor = null;
+        } finally {
+            lock.unlock();
         }
     }
 
     public void setChoked(int peerId, boolean isChoked) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             chokeStatus.put(peerId, isChoked);
+        } finally {
+            lock.unlock();
         }
     }
 
     public void setInterested(int peerId, boolean isInterested) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             interestedStatus.put(peerId, isInterested);
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean isChoked(int peerId) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             return chokeStatus.getOrDefault(peerId, true);
+        } finally {
+            lock.unlock();
         }
     }
 
-    public void updateDownloadRate(int peerId, long bytesDownloaded) {
-        synchronized (lock) {
-            downloadRates.put(peerId, bytesDownloaded);
+    // Called from connection threads for every PIECE payload received from the peer
+    public void recordDownload(int peerId, long bytes) {
+        bytesDownloaded.computeIfAbsent(peerId, k -> new LongAdder()).add(bytes);
+    }
+
+    // Called from connection threads for every PIECE payload queued to the peer
+    public void recordUpload(int peerId, long bytes) {
+        bytesUploaded.computeIfAbsent(peerId, k -> new LongAdder()).add(bytes);
+    }
+
+    // Turns the bytes counted since the previous call into rates and starts a new window
+    private void sampleRates() {
+        long now = System.nanoTime();
+        long elapsedMs = Math.max(1, (now - lastRateSample) / 1_000_000);
+        lastRateSample = now;
+        lock.lock();
+        try {
+            for (Integer peerId : downloadRates.keySet()) {
+                LongAdder received = bytesDownloaded.get(peerId);
+                downloadRates.put(peerId, received == null ? 0 : received.sumThenReset() * 1000 / elapsedMs);
+            }
+            for (Integer peerId : uploadRates.keySet()) {
+                LongAdder sent = bytesUploaded.get(peerId);
+                uploadRates.put(peerId, sent == null ? 0 : sent.sumThenReset() * 1000 / elapsedMs);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
+    // Returns once every peer of the swarm is complete; the process decides whether to exit
     @Override
     public void run() {
         try {
@@ -78,36 +173,51 @@ public class UploadManager implements Runnable {
                 Thread.sleep(UNCHOKE_INTERVAL_MS);
 
                 // Check if all peers are complete
-                synchronized (this) {
-                    if (shutdown) {
-                        break;
-                    }
+                if (shutdown) {
+                    break;
                 }
             }
         } catch (InterruptedException e) {
             // exit here
         }
 
-        // Close all output streams
-        for (OutputStream os : peerOutputs.values()) {
-            try {
-                os.close();
-            } catch (Exception ignore) {}
+        // Close all output streams and hand the swarm's upload slots back
+        lock.lock();
+        try {
+            for (Integer peerId : peerOutputs.keySet()) {
+                peerOutputs.get(peerId).close();
+                if (!chokeStatus.getOrDefault(peerId, true)) {
+                    chokeStatus.put(peerId, true);
+                    uploadSlots.release();
+                }
+            }
+        } finally {
+            lock.unlock();
         }
-        System.exit(0);
     }
 
 
-    private void updatePreferredNeighbors() {
+    // Package-private for the choking benchmark
+    void updatePreferredNeighbors() {
+        sampleRates();
+
+        // Leechers reward the peers that sent them the most; seeders have nothing to
+        // download, so they favour the peers that take data from them fastest
+        boolean seeding = peerCompletionMap.getOrDefault(selfPeerId, false);
         List<Map.Entry<Integer, Long>> sorted = new ArrayList<>();
-        synchronized (lock) {
+        lock.lock();
+        try {
             // Only consider peers that are interested for preferred neighbor
-            for (Map.Entry<Integer, Long> entry : downloadRates.entrySet()) {
+            for (Map.Entry<Integer, Long> entry : (seeding ? uploadRates : downloadRates).entrySet()) {
                 if (interestedStatus.getOrDefault(entry.getKey(), false)) {
-                    sorted.add(entry);
+                    sorted.add(new AbstractMap.SimpleEntry<>(entry));
                 }
             }
+        } finally {
+            lock.unlock();
         }
+        // Shuffle first so the (stable) sort breaks ties between equal rates randomly
+        Collections.shuffle(sorted);
         sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
 
         Set<Integer> newPreferred = new HashSet<>();
@@ -115,34 +225,30 @@ public class UploadManager implements Runnable {
             newPreferred.add(sorted.get(i).getKey());
         }
 
-        synchronized (lock) {
+        lock.lock();
+        try {
+            // Chokes go first so their upload slots are free again for this round's unchokes
             for (Integer peerId : peerOutputs.keySet()) {
                 boolean choked = chokeStatus.getOrDefault(peerId, true);
-                OutputStream os = peerOutputs.get(peerId);
-                try {
-                    if (newPreferred.contains(peerId) || peerId.equals(optimisticNeighbor)) {
-                        if (choked) {
-                            // Unchoke
-                            os.write(new UnchokeMessage().toBytes());
-                            os.flush();
-                            chokeStatus.put(peerId, false);
-                            System.out.println("Unchoked peer " + peerId);
-                        }
-                    } else {
-                        if (!choked) {
-                            // Choke
-                            os.write(new ChokeMessage().toBytes());
-                            os.flush();
-                            chokeStatus.put(peerId, true);
-                            System.out.println("Choked peer " + peerId);
-                        }
-                    }
-                } catch (Exception e) {
-                    String msg = e.getMessage() != null ? e.getMessage() : "";
-                    if (!msg.contains("Socket closed") && !msg.contains("Connection reset")) {
-                        System.out.println("Failed to send choke/unchoke to peer " + peerId + ": " + msg);
-                        //Logger.log("Failed to send choke/unchoke to peer " + peerId + ": " + msg, selfPeerId);
-                    }
+                if (!choked && !newPreferred.contains(peerId) && !peerId.equals(optimisticNeighbor)) {
+                    // Choke
+                    peerOutputs.get(peerId).send(MessageCodec.emptyFrame(MessageCodec.CHOKE));
+                    chokeStatus.put(peerId, true);
+                    uploadSlots.release();
+                    CHOKES.increment();
+                    System.out.println("Choked peer " + peerId);
+                }
+            }
+            for (Integer peerId : peerOutputs.keySet()) {
+                boolean choked = chokeStatus.getOrDefault(peerId, true);
+                if (choked && (newPreferred.contains(peerId) || peerId.equals(optimisticNeighbor))) {
+                    // Other swarms in this process may hold the whole budget; retry next round
+                    if (!uploadSlots.tryAcquire()) continue;
+                    // Unchoke
+                    peerOutputs.get(peerId).send(MessageCodec.emptyFrame(MessageCodec.UNCHOKE));
+                    chokeStatus.put(peerId, false);
+                    UNCHOKES.increment();
+                    System.out.println("Unchoked peer " + peerId);
                 }
             }
             boolean changed = !preferredNeighbors.equals(newPreferred);
@@ -154,17 +260,22 @@ public class UploadManager implements Runnable {
                         .collect(Collectors.joining(", "));
                 Logger.log("Peer " + selfPeerId + " has the preferred neighbors [" + list + "].", selfPeerId);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     private void updateOptimisticUnchoke() {
         List<Integer> candidates = new ArrayList<>();
-        synchronized (lock) {
+        lock.lock();
+        try {
             for (Integer peerId : peerOutputs.keySet()) {
                 if (!preferredNeighbors.contains(peerId) && interestedStatus.getOrDefault(peerId, false)) {
                     candidates.add(peerId);
                 }
             }
+        } finally {
+            lock.unlock();
         }
         if (!candidates.isEmpty()) {
             optimisticNeighbor = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
@@ -173,22 +284,85 @@ public class UploadManager implements Runnable {
         }
     }
 
+    // Queues a message on one peer's connection, if it is still connected
+    public void sendTo(int peerId, byte[] msgBytes) {
+        Outbound out;
+        lock.lock();
+        try {
+            out = peerOutputs.get(peerId);
+        } finally {
+            lock.unlock();
+        }
+        if (out != null) out.send(msgBytes);
+    }
+
+    // Announces a new piece to every peer that may still want it; a slow peer only delays
+    // its own copy. With a batch window the piece waits for others to share one message.
     public void broadcastHave(int pieceIndex) {
-        byte[] msgBytes = new HaveMessage(pieceIndex).toBytes();
-        synchronized (lock) {
-            for (OutputStream os : peerOutputs.values()) {
-                try {
-                    os.write(msgBytes);
-                    os.flush();
-                } catch (Exception e) {
-                    String msg = e.getMessage() != null ? e.getMessage() : "";
-                    if (!msg.contains("Socket closed") && !msg.contains("Connection reset")) {
-                        System.out.println("Failed to send HAVE message: " + msg);
-                        Logger.log("Failed to send HAVE message: " + msg, selfPeerId);
-                    }
-                }
+        if (haveBatchMillis <= 0) {
+            sendHaves(new int[]{pieceIndex});
+            return;
+        }
+        boolean first;
+        lock.lock();
+        try {
+            first = pendingHaves.isEmpty();
+            pendingHaves.add(pieceIndex);
+        } finally {
+            lock.unlock();
+        }
+        if (first) HAVE_FLUSHER.schedule(this::flushHaves, haveBatchMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushHaves() {
+        int[] indexes;
+        lock.lock();
+        try {
+            indexes = pendingHaves.stream().mapToInt(Integer::intValue).toArray();
+            pendingHaves.clear();
+        } finally {
+            lock.unlock();
+        }
+        if (indexes.length > 0) sendHaves(indexes);
+    }
+
+    // Complete peers need nothing from us, so they are skipped. Peers with compact messages
+    // get one HAVE_BATCH, the others one HAVE per piece, all in a single array.
+    private void sendHaves(int[] indexes) {
+        List<Outbound> compact = new ArrayList<>();
+        List<Outbound> legacy = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Map.Entry<Integer, Outbound> e : peerOutputs.entrySet()) {
+                if (peerCompletionMap.getOrDefault(e.getKey(), false)) continue;
+                (compactPeers.contains(e.getKey()) ? compact : legacy).add(e.getValue());
             }
+        } finally {
+            lock.unlock();
         }
+        if (!compact.isEmpty()) {
+            byte[] message;
+            if (indexes.length == 1) {
+                ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HAVE_LENGTH);
+                MessageCodec.encodeHave(frame, indexes[0]);
+                message = frame.array();
+            } else {
+                int[] sorted = indexes.clone();
+                Arrays.sort(sorted);
+                ByteBuffer frame = ByteBuffer.allocate(MessageCodec.haveBatchMaxLength(sorted.length));
+                MessageCodec.encodeHaveBatch(frame, sorted, sorted.length);
+                message = Arrays.copyOf(frame.array(), frame.position());
+            }
+            for (Outbound out : compact) out.send(message);
+            HAVE_MESSAGES.add(compact.size());
+        }
+        if (!legacy.isEmpty()) {
+            ByteBuffer frames = ByteBuffer.allocate(indexes.length * MessageCodec.HAVE_LENGTH);
+            for (int index : indexes) MessageCodec.encodeHave(frames, index);
+            for (Outbound out : legacy) out.send(frames.array());
+            HAVE_MESSAGES.add((long) legacy.size() * indexes.length);
+        }
+        HAVES.add((long) (compact.size() + legacy.size()) * indexes.length);
     }
 
     // called when a peer has the complete file
@@ -208,28 +382,21 @@ public class UploadManager implements Runnable {
             System.out.println("All peers completed. Shutting down.");
             Logger.log("All peers completed. Shutting down.", selfPeerId);
             shutdown = true;
-            synchronized (this) {
-                notifyAll(); // Wake up any waiting threads
-            }
         }
     }
 
 
     public void broadcastPeerCompleted(int peerId) {
-        byte[] msgBytes = new PeerCompletedMessage(peerId).toBytes();
-        synchronized (lock) {
-            for (OutputStream os : peerOutputs.values()) {
-                try {
-                    os.write(msgBytes);
-                    os.flush();
-                } catch (Exception e) {
-                    String msg = e.getMessage() != null ? e.getMessage() : "";
-                    if (!msg.contains("Socket closed") && !msg.contains("Connection reset")) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.PEER_COMPLETED_LENGTH);
+        MessageCodec.encodePeerCompleted(frame, peerId);
+        List<Outbound> targets;
+        lock.lock();
+        try {
+            targets = new ArrayList<>(peerOutputs.values());
+        } finally {
+            lock.unlock();
         }
+        for (Outbound out : targets) out.send(frame.array());
     }
 
     public Map<Integer, Boolean> getPeerCompletionMap() {
@@ -0,0 +1,38 @@
+package peer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upload-slot budget shared by every swarm in the process.
+ *
+ * Each unchoked connection holds one slot, taken when the UploadManager unchokes it and
+ * given back when it is choked again or the swarm stops. Once the budget is used up,
+ * further unchokes wait for a later round, so many swarms in one process cannot unchoke
+ * more peers between them than the uplink can serve.
+ */
+public class UploadSlots {
+
+    private final int limit;
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    // limit <= 0 means unlimited
+    public UploadSlots(int limit) {
+        this.limit = limit <= 0 ? Integer.MAX_VALUE : limit;
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int used = inUse.get();
+            if (used >= limit) return false;
+            if (inUse.compareAndSet(used, used + 1)) return true;
+        }
+    }
+
+    public void release() {
+        inUse.decrementAndGet();
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+}
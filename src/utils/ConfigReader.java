@@ -1,6 +1,7 @@
 package utils;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.util.*;
 
 public class ConfigReader {
@@ -30,7 +31,27 @@ public class ConfigReader {
 
         loadCommonConfig(commonPath);
         loadPeerInfo(peerInfoPath);
+        findSelf(peerInfoPath);
+    }
+
+    // One swarm of a multi-swarm process: the process's settings overridden by dir/Common.cfg,
+    // with dir/PeerInfo.cfg if the swarm has its own peer list
+    private ConfigReader(ConfigReader parent, String dir) {
+        this.selfPeerId = parent.selfPeerId;
+        commonCfg.putAll(parent.commonCfg);
+        commonCfg.remove("Swarms");
+        loadCommonConfig(dir + "/Common.cfg");
+        String peerInfoPath = dir + "/PeerInfo.cfg";
+        if (new File(peerInfoPath).exists()) {
+            loadPeerInfo(peerInfoPath);
+            findSelf(peerInfoPath);
+        } else {
+            peers.addAll(parent.peers);
+            selfInfo = parent.selfInfo;
+        }
+    }
 
+    private void findSelf(String peerInfoPath) {
         for (PeerInfo p : peers) {
             if (p.peerId == selfPeerId) {
                 selfInfo = p;
@@ -39,7 +60,7 @@ public class ConfigReader {
         }
 
         if (selfInfo == null)
-            throw new RuntimeException("Peer ID " + selfPeerId + " not found in PeerInfo.cfg");
+            throw new RuntimeException("Peer ID " + selfPeerId + " not found in " + peerInfoPath);
     }
 
     private void loadCommonConfig(String path) {
@@ -79,6 +100,76 @@ public class ConfigReader {
     public int getPieceSize() { return Integer.parseInt(commonCfg.get("PieceSize")); }
     public int getPort() { return selfInfo.port; }
 
+    // Transfer unit inside a piece; REQUEST and PIECE carry one block each
+    public int getBlockSize() { return Integer.parseInt(commonCfg.getOrDefault("BlockSize", "16384")); }
+
+    // Milliseconds new HAVEs are held so they go out as one message; 0 sends each at once
+    public int getHaveBatchWindow() { return Integer.parseInt(commonCfg.getOrDefault("HaveBatchWindow", "50")); }
+
+    // Number of block REQUESTs a connection keeps in flight at once (1 = stop-and-wait)
+    public int getMaxOutstandingRequests() {
+        return Integer.parseInt(commonCfg.getOrDefault("MaxOutstandingRequests", "5"));
+    }
+
+    // Bytes that may wait in one connection's outbound queue before its producer is held back
+    public int getMaxQueuedBytesPerPeer() {
+        return Integer.parseInt(commonCfg.getOrDefault("MaxQueuedBytesPerPeer", "1048576"));
+    }
+
+    // "blocking" runs one thread per connection, "nio" multiplexes connections over a few selectors
+    public String getNetworkEngine() { return commonCfg.getOrDefault("NetworkEngine", "blocking"); }
+    public int getNioThreads() { return Integer.parseInt(commonCfg.getOrDefault("NioThreads", "2")); }
+    // "platform" (bounded pool of OS threads) or "virtual" (one virtual thread per task, Java 21+)
+    public String getThreadMode() { return commonCfg.getOrDefault("ThreadMode", "platform"); }
+
+    // Piece digests generated by the seeder; leechers verify received pieces against them
+    public String getManifestPath() { return commonCfg.getOrDefault("ManifestFile", "config/" + getFileName() + ".manifest"); }
+    public String getHashAlgorithm() { return commonCfg.getOrDefault("HashAlgorithm", "SHA-256"); }
+    public int getVerifyThreads() {
+        return Integer.parseInt(commonCfg.getOrDefault("VerifyThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    // "sync" writes each log line directly, "async" hands lines to a background writer
+    public String getLogMode() { return commonCfg.getOrDefault("LogMode", "sync"); }
+    public int getLogQueueCapacity() { return Integer.parseInt(commonCfg.getOrDefault("LogQueueCapacity", "8192")); }
+    // What async logging does when the queue is full: "block" the caller or "drop" the line
+    public String getLogQueueFullPolicy() { return commonCfg.getOrDefault("LogQueueFullPolicy", "block"); }
+
+    // Seconds between bitfield checkpoints written by a downloading peer. Checkpoints are not
+    // forced to disk; pieces written since the last force are re-checked after a crash.
+    public int getCheckpointInterval() { return Integer.parseInt(commonCfg.getOrDefault("CheckpointInterval", "5")); }
+
+    // "verify" hashes the existing file against the manifest at startup instead of trusting hasFile
+    public String getStartupScan() { return commonCfg.getOrDefault("StartupScan", "off"); }
+
+    // Upload slots (unchoked connections) shared by all swarms of the process; 0 means no limit
+    public int getMaxUploadSlots() { return Integer.parseInt(commonCfg.getOrDefault("MaxUploadSlots", "0")); }
+
+    // Bytes of memory (off-heap) per swarm for caching uploaded pieces; 0 turns the cache off
+    public long getPieceCacheSize() { return Long.parseLong(commonCfg.getOrDefault("PieceCacheSize", "16777216")); }
+
+    // Received pieces waiting for the disk writer; 0 (the default) writes each piece on the thread that stores it
+    public int getDiskWriteQueue() { return Integer.parseInt(commonCfg.getOrDefault("DiskWriteQueue", "0")); }
+    // "batch" forces every batch of written pieces to the device before they are owned; "none" leaves it to the OS
+    public String getDiskSync() { return commonCfg.getOrDefault("DiskSync", "none"); }
+
+    // Seconds between one-line stats summaries on stdout; 0 turns them off
+    public int getStatsInterval() { return Integer.parseInt(commonCfg.getOrDefault("StatsInterval", "0")); }
+    // Loopback port serving all metrics as text at /metrics; 0 turns it off
+    public int getMetricsPort() { return Integer.parseInt(commonCfg.getOrDefault("MetricsPort", "0")); }
+
+    // "Swarms a,b" makes the process host one swarm per config/<name> directory; without it
+    // the process is a single swarm described by this config
+    public List<ConfigReader> getSwarmConfigs() {
+        String names = commonCfg.get("Swarms");
+        if (names == null) return List.of(this);
+        List<ConfigReader> swarms = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.isBlank()) swarms.add(new ConfigReader(this, "config/" + name.trim()));
+        }
+        return swarms;
+    }
+
     public boolean selfHasFile() { return selfInfo.hasFile; }
 
     public List<Integer> getKnownPeers() {
@@ -89,11 +180,25 @@ public class ConfigReader {
         return list;
     }
 
+    // Where each peer listens, in PeerInfo.cfg order
+    public Map<Integer, InetSocketAddress> getPeerAddresses() {
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (PeerInfo p : peers) {
+            addresses.put(p.peerId, new InetSocketAddress(p.host, p.port));
+        }
+        return addresses;
+    }
+
     public PeerInfo getPeerInfo(int pid) {
         return peers.stream().filter(p -> p.peerId == pid).findFirst().orElse(null);
     }
 
     public peer.PeerState buildPeerState() {
+        return buildPeerState("peer_" + selfPeerId);
+    }
+
+    // dir holds the shared file and its checkpoint
+    public peer.PeerState buildPeerState(String dir) {
 
         boolean hasFile = selfInfo.hasFile;
         int pieceSize = getPieceSize();
@@ -102,6 +207,10 @@ public class ConfigReader {
 
         int numPieces = (int)Math.ceil((double) fileBytes / pieceSize);
 
-        return new peer.PeerState(numPieces, hasFile, selfPeerId, pieceSize, fileName);
+        peer.PeerState peerState = new peer.PeerState(numPieces, hasFile, selfPeerId, pieceSize, fileName, fileBytes, dir);
+        peerState.setPieceCache(peer.PieceCache.create(getPieceCacheSize(), pieceSize));
+        if (getDiskWriteQueue() > 0) peerState.startDiskWriter(getDiskWriteQueue(), getDiskSync().equals("batch"));
+        if (!hasFile) peerState.restoreCheckpoint();
+        return peerState;
     }
 }
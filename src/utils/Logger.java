@@ -6,22 +6,236 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Logger {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(java.time.ZoneId.systemDefault());
+
+    // Where the log_peer_<id>.log files go
+    private static volatile String directory = "logs";
+
+    // null means synchronous mode: every call appends straight to the file
+    private static volatile AsyncWriter asyncWriter = null;
+
     public static void log(String message, int peerId) {
-        Instant now = Instant.now();
+        String formattedTimestamp = FORMATTER.format(Instant.now());
+        String line = "[" + formattedTimestamp + "]: " + message;
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
-        String formattedTimestamp = now.atZone(java.time.ZoneId.systemDefault()).format(formatter);
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.enqueue(peerId, line);
+            return;
+        }
 
-        String path = "logs/log_peer_" + peerId + ".log";
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path, true))) {
-            writer.write("[" + formattedTimestamp + "]: " + message);
-            writer.newLine();
+        String path = directory + "/log_peer_" + peerId + ".log";
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(path, true))) {
+            out.write(line);
+            out.newLine();
         }
         catch (IOException e) {
             System.err.println("Error writing to peer_" + peerId + " log file: " + e.getMessage());
         }
     }
-}
 
+    // Switches to async mode: log() only enqueues, and one background thread keeps the
+    // log files open and writes lines in batches. When the queue holds queueCapacity lines,
+    // callers either wait for room or the line is dropped (and counted).
+    public static synchronized void startAsync(int queueCapacity, boolean dropWhenFull) {
+        if (asyncWriter != null) return;
+        AsyncWriter writer = new AsyncWriter(queueCapacity, dropWhenFull);
+        writer.thread.start();
+        asyncWriter = writer;
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::shutdown));
+    }
+
+    // Writes out everything still queued, closes the files and returns to synchronous mode.
+    // The writer stays installed until it is done, so no line is appended to a file it still
+    // has open; lines logged while it stops are dropped and counted.
+    public static synchronized void shutdown() {
+        AsyncWriter writer = asyncWriter;
+        if (writer == null) return;
+        writer.stop();
+        asyncWriter = null;
+    }
+
+    // For runs that keep their files elsewhere, e.g. the in-JVM swarm simulator
+    public static void setDirectory(String dir) {
+        directory = dir;
+    }
+
+    public static int getQueueDepth() {
+        AsyncWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.size.get();
+    }
+
+    public static long getDroppedCount() {
+        AsyncWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.dropped.get();
+    }
+
+    private static class Entry {
+        final int peerId;
+        final String line;
+
+        Entry(int peerId, String line) {
+            this.peerId = peerId;
+            this.line = line;
+        }
+    }
+
+    private static class AsyncWriter implements Runnable {
+        private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private final int capacity;
+        private final boolean dropWhenFull;
+        private final Thread thread;
+        private final Map<Integer, BufferedWriter> files = new HashMap<>();
+        private volatile boolean running = true;
+        // Callers waiting for room park here (a lock, so virtual threads free their carrier)
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        AsyncWriter(int capacity, boolean dropWhenFull) {
+            this.capacity = capacity;
+            this.dropWhenFull = dropWhenFull;
+            this.thread = new Thread(this, "log-writer");
+            this.thread.setDaemon(true);
+        }
+
+        void enqueue(int peerId, String line) {
+            if (!running || (!reserve() && (dropWhenFull || !awaitSlot()))) {
+                dropped.incrementAndGet();
+                return;
+            }
+            // The writer only exits once running is false and no slot is reserved, so a line
+            // that holds a slot and still sees running is always written
+            if (!running) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                return;
+            }
+            queue.add(new Entry(peerId, line));
+            LockSupport.unpark(thread);
+        }
+
+        // Reserves a slot first so the queue never grows past capacity
+        private boolean reserve() {
+            if (size.incrementAndGet() <= capacity) return true;
+            size.decrementAndGet();
+            return false;
+        }
+
+        // Parks the caller until the writer has drained some lines and a slot is reserved.
+        // Returns false if the logger stopped (or the caller was interrupted) meanwhile.
+        private boolean awaitSlot() {
+            lock.lock();
+            waiters.incrementAndGet();
+            try {
+                while (!reserve()) {
+                    if (!running) return false;
+                    LockSupport.unpark(thread);
+                    // Bounded, in case a drain lands between the failed reserve and the await
+                    notFull.awaitNanos(IDLE_PARK_NANOS);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        private void signalNotFull() {
+            if (waiters.get() == 0) return;
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running || size.get() > 0) {
+                Entry entry;
+                boolean wrote = false;
+                while ((entry = queue.poll()) != null) {
+                    size.decrementAndGet();
+                    write(entry);
+                    wrote = true;
+                }
+                // Room first, then one flush per batch rather than per line
+                if (wrote) {
+                    signalNotFull();
+                    flushAll();
+                }
+                // Also while stopping, until producers that reserved a slot have added their line
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            for (BufferedWriter out : files.values()) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (dropped.get() > 0) {
+                System.err.println("Logger dropped " + dropped.get() + " lines because the queue was full or it was stopping");
+            }
+        }
+
+        void stop() {
+            running = false;
+            signalNotFull();
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(Entry entry) {
+            try {
+                BufferedWriter out = files.get(entry.peerId);
+                if (out == null) {
+                    new File(directory).mkdirs();
+                    out = new BufferedWriter(new FileWriter(directory + "/log_peer_" + entry.peerId + ".log", true));
+                    files.put(entry.peerId, out);
+                }
+                out.write(entry.line);
+                out.newLine();
+            } catch (IOException e) {
+                System.err.println("Error writing to peer_" + entry.peerId + " log file: " + e.getMessage());
+            }
+        }
+
+        private void flushAll() {
+            for (Map.Entry<Integer, BufferedWriter> file : files.entrySet()) {
+                try {
+                    file.getValue().flush();
+                } catch (IOException e) {
+                    System.err.println("Error writing to peer_" + file.getKey() + " log file: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms.
+ *
+ * Metrics are created on first use by name and live for the life of the JVM; callers on
+ * hot paths look a metric up once and keep the reference. Counters are LongAdders and
+ * histograms update atomic buckets, so recording never takes a lock. A gauge name may have
+ * several suppliers (e.g. one per swarm) and reports their sum.
+ *
+ * MetricsExporter publishes snapshot() over JMX, as a periodic stats line or over HTTP.
+ */
+public class Metrics {
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, List<LongSupplier>> gauges = new ConcurrentHashMap<>();
+
+    static {
+        gauge("log_queue_depth", Logger::getQueueDepth);
+        gauge("log_dropped", Logger::getDroppedCount);
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.computeIfAbsent(name, k -> new CopyOnWriteArrayList<>()).add(supplier);
+    }
+
+    public static void removeGauge(String name, LongSupplier supplier) {
+        List<LongSupplier> suppliers = gauges.get(name);
+        if (suppliers != null) suppliers.remove(supplier);
+    }
+
+    // Every metric as name -> value, sorted by name. A histogram h contributes h.count,
+    // h.mean, h.p50, h.p99 and h.max.
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        gauges.forEach((name, suppliers) -> {
+            long sum = 0;
+            for (LongSupplier supplier : suppliers) sum += supplier.getAsLong();
+            values.put(name, sum);
+        });
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".mean", histogram.mean());
+            values.put(name + ".p50", histogram.percentile(50));
+            values.put(name + ".p99", histogram.percentile(99));
+            values.put(name + ".max", histogram.max());
+        });
+        return values;
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values: every power of two is split into
+     * SUB_BUCKETS equal buckets, so a percentile is reported within 1/SUB_BUCKETS of the
+     * true value (as the upper bound of its bucket) from a fixed 4 KB of counters.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            long seen;
+            while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+                // retry
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket holding the p-th percentile, capped at the largest value seen
+        public long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            long width = 1L << (exp - SUB_BITS);
+            return ((long) (SUB_BUCKETS + sub) << (exp - SUB_BITS)) + width - 1;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package utils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the Metrics registry: as the JMX MBean p2p:type=Metrics (one read-only
+ * attribute per metric, for jconsole or a JMX scraper), as a one-line summary printed every
+ * statsInterval seconds, and as "name value" lines at http://127.0.0.1:port/metrics.
+ */
+public class MetricsExporter {
+
+    private final int statsInterval;
+    private final int httpPort;
+    private ScheduledExecutorService statsThread;
+    private HttpServer httpServer;
+    private Map<String, Long> lastStats;
+    private long lastStatsNanos;
+
+    // 0 for either turns that export off; JMX is always registered
+    public MetricsExporter(int statsInterval, int httpPort) {
+        this.statsInterval = statsInterval;
+        this.httpPort = httpPort;
+    }
+
+    public void start() {
+        registerMBean();
+        if (statsInterval > 0) {
+            lastStats = Metrics.snapshot();
+            lastStatsNanos = System.nanoTime();
+            statsThread = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statsThread.scheduleAtFixedRate(() -> System.out.println(statsLine()), statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+        if (httpPort > 0) {
+            try {
+                startHttp();
+            } catch (IOException e) {
+                // Metrics are not worth failing the transfer for, e.g. when the port is taken
+                System.out.println("Could not serve metrics on port " + httpPort + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void startHttp() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            StringBuilder sb = new StringBuilder();
+            Metrics.snapshot().forEach((name, value) -> sb.append(name).append(' ').append(value).append('\n'));
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        httpServer.start();
+        System.out.println("Metrics at http://127.0.0.1:" + httpPort + "/metrics");
+    }
+
+    public void close() {
+        if (statsThread != null) statsThread.shutdownNow();
+        if (httpServer != null) httpServer.stop(0);
+    }
+
+    // Rates are over the interval since the previous line
+    private String statsLine() {
+        Map<String, Long> now = Metrics.snapshot();
+        long nowNanos = System.nanoTime();
+        double seconds = Math.max(1, nowNanos - lastStatsNanos) / 1e9;
+        String line = String.format("[Stats] in %.1f KB/s, out %.1f KB/s, %.1f pieces/s, %d outstanding, "
+                        + "request p50/p99 %d/%d us, disk write p99 %d us, batch write p99 %d us, read p99 %d us, log queue %d",
+                (sumPrefix(now, "bytes_in.") - sumPrefix(lastStats, "bytes_in.")) / seconds / 1024,
+                (sumPrefix(now, "bytes_out.") - sumPrefix(lastStats, "bytes_out.")) / seconds / 1024,
+                (now.getOrDefault("pieces_downloaded", 0L) - lastStats.getOrDefault("pieces_downloaded", 0L)) / seconds,
+                now.getOrDefault("requests_outstanding", 0L),
+                now.getOrDefault("request_latency_us.p50", 0L), now.getOrDefault("request_latency_us.p99", 0L),
+                now.getOrDefault("disk_write_us.p99", 0L), now.getOrDefault("disk_batch_write_us.p99", 0L),
+                now.getOrDefault("disk_read_us.p99", 0L),
+                now.getOrDefault("log_queue_depth", 0L));
+        lastStats = now;
+        lastStatsNanos = nowNanos;
+        return line;
+    }
+
+    private static long sumPrefix(Map<String, Long> values, String prefix) {
+        long sum = 0;
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            if (e.getKey().startsWith(prefix)) sum += e.getValue();
+        }
+        return sum;
+    }
+
+    // Several peer processes in one JVM share the registry, so the first registration serves them all
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("p2p:type=Metrics"));
+        } catch (InstanceAlreadyExistsException ignore) {
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // The attribute set is read from the registry on every call, so metrics created later show up too
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Long value = Metrics.snapshot().get(name);
+            if (value == null) throw new AttributeNotFoundException(name);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Long> values = Metrics.snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                Long value = values.get(name);
+                if (value != null) list.add(new Attribute(name, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // No operations; JMX clients expect a missing one to be reported this way
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = Metrics.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(), "Peer metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package peer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AtomicBitfieldTest {
+
+    @Test
+    void setAndClearKeepTheCount() {
+        AtomicBitfield bits = new AtomicBitfield(130);
+        assertTrue(bits.set(0));
+        assertTrue(bits.set(64));
+        assertTrue(bits.set(129));
+        assertFalse(bits.set(64));
+        assertEquals(3, bits.cardinality());
+        assertTrue(bits.get(129));
+        assertFalse(bits.get(128));
+
+        assertTrue(bits.clear(64));
+        assertFalse(bits.clear(64));
+        assertEquals(2, bits.cardinality());
+        assertFalse(bits.isFull());
+
+        bits.setAll();
+        assertEquals(130, bits.cardinality());
+        assertTrue(bits.isFull());
+    }
+
+    @Test
+    void nextBitsAcrossWords() {
+        AtomicBitfield bits = new AtomicBitfield(130);
+        bits.set(5);
+        bits.set(70);
+        assertEquals(5, bits.nextSetBit(0));
+        assertEquals(70, bits.nextSetBit(6));
+        assertEquals(-1, bits.nextSetBit(71));
+        assertEquals(-1, bits.nextSetBit(130));
+
+        bits.setAll();
+        bits.clear(127);
+        assertEquals(127, bits.nextClearBit(0));
+        bits.set(127);
+        // Spare bits past the last piece never count as clear
+        assertEquals(-1, bits.nextClearBit(0));
+    }
+
+    @Test
+    void nextSetBitInIntersects() {
+        AtomicBitfield a = new AtomicBitfield(200);
+        AtomicBitfield b = new AtomicBitfield(200);
+        a.set(3);
+        a.set(100);
+        a.set(199);
+        b.set(100);
+        b.set(150);
+        b.set(199);
+        assertEquals(100, a.nextSetBitIn(b, 0));
+        assertEquals(199, a.nextSetBitIn(b, 101));
+        assertEquals(-1, a.nextSetBitIn(b, 200));
+    }
+
+    @Test
+    void bytesRoundTripHighBitFirst() {
+        AtomicBitfield bits = new AtomicBitfield(12);
+        bits.set(0);
+        bits.set(11);
+        byte[] bytes = bits.toBytes();
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x10}, bytes);
+
+        AtomicBitfield decoded = AtomicBitfield.fromBytes(bytes, 12);
+        assertEquals(2, decoded.cardinality());
+        assertTrue(decoded.get(0) && decoded.get(11));
+    }
+
+    @Test
+    void fromBytesReadsAtAnOffsetAndIgnoresSpareBits() {
+        // Two bytes of padding, then 10 pieces with every bit set, spare bits included
+        byte[] buf = {9, 9, (byte) 0xff, (byte) 0xff, 9};
+        AtomicBitfield bits = AtomicBitfield.fromBytes(buf, 2, 2, 10);
+        assertEquals(10, bits.cardinality());
+        assertTrue(bits.isFull());
+        assertArrayEquals(new byte[]{(byte) 0xff, (byte) 0xc0}, bits.toBytes());
+    }
+
+    @Test
+    void shortBitfieldReadsAsMissingPieces() {
+        AtomicBitfield bits = AtomicBitfield.fromBytes(new byte[]{(byte) 0xff}, 100);
+        assertEquals(8, bits.cardinality());
+        assertEquals(8, bits.nextClearBit(0));
+    }
+
+    @Test
+    void missingFromComparesWordWise() {
+        AtomicBitfield local = new AtomicBitfield(150);
+        AtomicBitfield remote = new AtomicBitfield(150);
+        for (int i = 0; i < 150; i += 2) remote.set(i);
+        for (int i = 0; i < 100; i++) local.set(i);
+
+        assertEquals(25, local.countMissingFrom(remote));
+        assertTrue(local.hasMissingFrom(remote));
+        AtomicBitfield missing = local.missingFrom(remote);
+        assertEquals(25, missing.cardinality());
+        assertEquals(100, missing.nextSetBit(0));
+        assertFalse(missing.get(101));
+
+        for (int i = 100; i < 150; i++) local.set(i);
+        assertEquals(0, local.countMissingFrom(remote));
+        assertFalse(local.hasMissingFrom(remote));
+    }
+}
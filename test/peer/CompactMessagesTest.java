@@ -0,0 +1,108 @@
+package peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactMessagesTest {
+
+    private static List<Integer> haves(ByteBuffer frame) {
+        List<Integer> indexes = new ArrayList<>();
+        int payload = frame.getInt(0) - 1;
+        MessageCodec.forEachHave(frame.array(), MessageCodec.HEADER_LENGTH, payload, indexes::add);
+        return indexes;
+    }
+
+    private static AtomicBitfield roundTrip(AtomicBitfield bitfield) {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.compactBitfieldMaxLength(bitfield.size()));
+        MessageCodec.encodeCompactBitfield(frame, bitfield);
+        assertEquals(MessageCodec.COMPACT_BITFIELD, frame.get(4));
+        assertEquals(frame.position() - 4, frame.getInt(0));
+        return MessageCodec.decodeCompactBitfield(frame.array(), MessageCodec.HEADER_LENGTH, frame.position() - MessageCodec.HEADER_LENGTH, bitfield.size());
+    }
+
+    @Test
+    void haveBatchRoundTripsDeltas() {
+        int[] indexes = {0, 1, 127, 128, 300, 20000, 2_000_000_000};
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.haveBatchMaxLength(indexes.length));
+        MessageCodec.encodeHaveBatch(frame, indexes, indexes.length);
+        assertEquals(MessageCodec.HAVE_BATCH, frame.get(4));
+        assertEquals(frame.position() - 4, frame.getInt(0));
+        assertEquals(List.of(0, 1, 127, 128, 300, 20000, 2_000_000_000), haves(frame));
+    }
+
+    @Test
+    void haveBatchOfNearbyPiecesIsAByteEach() {
+        int[] indexes = {10, 11, 12, 13, 14, 15, 16, 17};
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.haveBatchMaxLength(indexes.length));
+        MessageCodec.encodeHaveBatch(frame, indexes, 5);
+        assertEquals(MessageCodec.HEADER_LENGTH + 5, frame.position());
+        assertEquals(List.of(10, 11, 12, 13, 14), haves(frame));
+    }
+
+    @Test
+    void truncatedVarintIsRejected() {
+        // Continuation bit set on the last byte
+        byte[] payload = {5, (byte) 0x80};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.forEachHave(payload, 0, payload.length, i -> { }));
+        // More than five bytes
+        byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.forEachHave(tooLong, 0, tooLong.length, i -> { }));
+    }
+
+    @Test
+    void varintRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+        for (int value : values) MessageCodec.putVarint(buffer, value);
+        buffer.flip();
+        for (int value : values) assertEquals(value, MessageCodec.getVarint(buffer));
+    }
+
+    @Test
+    void compactBitfieldOfEmptyAndFullPeersIsOneRun() {
+        AtomicBitfield empty = new AtomicBitfield(1000);
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.compactBitfieldMaxLength(1000));
+        MessageCodec.encodeCompactBitfield(frame, empty);
+        assertEquals(MessageCodec.HEADER_LENGTH + 1 + 2, frame.position());
+        assertEquals(0, roundTrip(empty).cardinality());
+
+        AtomicBitfield full = new AtomicBitfield(1000);
+        full.setAll();
+        AtomicBitfield decoded = roundTrip(full);
+        assertTrue(decoded.isFull());
+    }
+
+    @Test
+    void compactBitfieldRoundTripsRuns() {
+        AtomicBitfield pieces = new AtomicBitfield(200);
+        for (int i = 3; i < 70; i++) pieces.set(i);
+        pieces.set(100);
+        for (int i = 150; i < 200; i++) pieces.set(i);
+        AtomicBitfield decoded = roundTrip(pieces);
+        assertEquals(pieces.cardinality(), decoded.cardinality());
+        for (int i = 0; i < 200; i++) assertEquals(pieces.get(i), decoded.get(i), "piece " + i);
+    }
+
+    @Test
+    void compactBitfieldRunPastTheLastPieceIsRejected() {
+        // Starts with owned pieces, then a run of 11 for a 10-piece file
+        byte[] payload = {1, 11};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decodeCompactBitfield(payload, 0, payload.length, 10));
+        // Runs that add up past the end
+        byte[] split = {0, 6, 5};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decodeCompactBitfield(split, 0, split.length, 10));
+    }
+
+    @Test
+    void compactBitfieldMissingTailMeansMissingPieces() {
+        byte[] payload = {1, 4};
+        AtomicBitfield decoded = MessageCodec.decodeCompactBitfield(payload, 0, payload.length, 10);
+        assertEquals(4, decoded.cardinality());
+        assertEquals(4, decoded.nextClearBit(0));
+    }
+}
@@ -0,0 +1,126 @@
+package peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    // Checks the frame header and returns the offset of the payload
+    private static int header(ByteBuffer frame, byte type, int payloadLength) {
+        assertEquals(1 + payloadLength, frame.getInt(0));
+        assertEquals(type, frame.get(4));
+        assertEquals(MessageCodec.HEADER_LENGTH + payloadLength, frame.position());
+        return MessageCodec.HEADER_LENGTH;
+    }
+
+    @Test
+    void haveRoundTrip() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HAVE_LENGTH);
+        MessageCodec.encodeHave(frame, 123456);
+        int offset = header(frame, MessageCodec.HAVE, 4);
+        assertEquals(123456, MessageCodec.pieceIndex(frame.array(), offset));
+    }
+
+    @Test
+    void requestAndCancelRoundTrip() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.REQUEST_LENGTH + MessageCodec.CANCEL_LENGTH);
+        MessageCodec.encodeRequest(frame, 7, 16384, 4096);
+        int offset = header(frame, MessageCodec.REQUEST, 12);
+        assertEquals(7, MessageCodec.pieceIndex(frame.array(), offset));
+        assertEquals(16384, MessageCodec.begin(frame.array(), offset));
+        assertEquals(4096, MessageCodec.requestLength(frame.array(), offset));
+
+        MessageCodec.encodeCancel(frame, 9, 32768, 100);
+        int cancel = MessageCodec.REQUEST_LENGTH;
+        assertEquals(13, frame.getInt(cancel));
+        assertEquals(MessageCodec.CANCEL, frame.get(cancel + 4));
+        assertEquals(9, MessageCodec.pieceIndex(frame.array(), cancel + MessageCodec.HEADER_LENGTH));
+        assertEquals(32768, MessageCodec.begin(frame.array(), cancel + MessageCodec.HEADER_LENGTH));
+        assertEquals(100, MessageCodec.requestLength(frame.array(), cancel + MessageCodec.HEADER_LENGTH));
+    }
+
+    @Test
+    void pieceHeaderCountsTheBlock() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.PIECE_HEADER_LENGTH);
+        MessageCodec.encodePieceHeader(frame, 3, 8192, 1000);
+        assertEquals(1 + 8 + 1000, frame.getInt(0));
+        assertEquals(MessageCodec.PIECE, frame.get(4));
+        assertEquals(3, MessageCodec.pieceIndex(frame.array(), MessageCodec.HEADER_LENGTH));
+        assertEquals(8192, MessageCodec.begin(frame.array(), MessageCodec.HEADER_LENGTH));
+    }
+
+    @Test
+    void peerCompletedRoundTrip() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.PEER_COMPLETED_LENGTH);
+        MessageCodec.encodePeerCompleted(frame, 1002);
+        int offset = header(frame, MessageCodec.PEER_COMPLETED, 4);
+        assertEquals(1002, MessageCodec.peerId(frame.array(), offset));
+    }
+
+    @Test
+    void bitfieldRoundTrip() {
+        AtomicBitfield pieces = new AtomicBitfield(20);
+        pieces.set(0);
+        pieces.set(9);
+        pieces.set(19);
+        byte[] bytes = pieces.toBytes();
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + bytes.length);
+        MessageCodec.encodeBitfield(frame, bytes);
+        int offset = header(frame, MessageCodec.BITFIELD, bytes.length);
+
+        AtomicBitfield decoded = MessageCodec.decodeBitfield(frame.array(), offset, bytes.length, 20);
+        assertEquals(3, decoded.cardinality());
+        assertTrue(decoded.get(0) && decoded.get(9) && decoded.get(19));
+    }
+
+    @Test
+    void emptyFramesAreSharedAndPayloadFree() {
+        for (byte type : new byte[]{MessageCodec.CHOKE, MessageCodec.UNCHOKE, MessageCodec.INTERESTED, MessageCodec.NOT_INTERESTED}) {
+            byte[] frame = MessageCodec.emptyFrame(type);
+            assertSame(frame, MessageCodec.emptyFrame(type));
+            assertEquals(MessageCodec.EMPTY_LENGTH, frame.length);
+            assertEquals(1, ByteBuffer.wrap(frame).getInt());
+            assertEquals(type, frame[4]);
+        }
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.emptyFrame(MessageCodec.HAVE));
+    }
+
+    @Test
+    void registryNamesKnownTypesOnly() {
+        assertTrue(MessageCodec.isRegistered(MessageCodec.PEER_COMPLETED));
+        assertEquals("PIECE", MessageCodec.name(MessageCodec.PIECE));
+        assertFalse(MessageCodec.isRegistered((byte) 200));
+        assertEquals("UNKNOWN(200)", MessageCodec.name((byte) 200));
+    }
+
+    @Test
+    void checkPayloadEnforcesSizes() {
+        MessageCodec.checkPayload(MessageCodec.HAVE, 4);
+        MessageCodec.checkPayload(MessageCodec.REQUEST, 12);
+        MessageCodec.checkPayload(MessageCodec.PIECE, 8);
+        MessageCodec.checkPayload(MessageCodec.CHOKE, 0);
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.HAVE, 3));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.HAVE, 5));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.REQUEST, 11));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.CANCEL, 13));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.PIECE, 7));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.CHOKE, 1));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.checkPayload(MessageCodec.PEER_COMPLETED, 0));
+        // Unknown types are left to the caller
+        MessageCodec.checkPayload((byte) 200, 1000);
+    }
+
+    @Test
+    void maxPayloadCoversTheLargestLegalFrames() {
+        // First message: a compact bitfield with one run per piece
+        assertEquals(1 + 5 * 101, MessageCodec.maxPayload(100, 16384, true));
+        // Later: a PIECE with a whole piece, or a HAVE_BATCH of every piece if that is larger
+        assertEquals(8 + 16384, MessageCodec.maxPayload(100, 16384, false));
+        assertEquals(5 * 100000, MessageCodec.maxPayload(100000, 16384, false));
+        // Never overflows a frame length
+        assertEquals(Integer.MAX_VALUE - MessageCodec.HEADER_LENGTH, MessageCodec.maxPayload(Integer.MAX_VALUE, Integer.MAX_VALUE, false));
+    }
+}
@@ -0,0 +1,266 @@
+package peer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PiecePickerTest {
+
+    // Three pieces of 100 bytes, the last one 50, in blocks of 40
+    private static final int PIECE_SIZE = 100;
+    private static final int BLOCK_SIZE = 40;
+    private static final long FILE_SIZE = 250;
+
+    @TempDir
+    Path dir;
+
+    private PeerState peerState;
+    private PiecePicker picker;
+
+    @BeforeEach
+    void setUp() {
+        peerState = new PeerState(3, false, 1, PIECE_SIZE, "file", FILE_SIZE, dir.toString());
+        picker = new PiecePicker(peerState, BLOCK_SIZE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        peerState.close();
+    }
+
+    private static AtomicBitfield remote(int numPieces, int... pieces) {
+        AtomicBitfield bitfield = new AtomicBitfield(numPieces);
+        for (int piece : pieces) bitfield.set(piece);
+        return bitfield;
+    }
+
+    // The bytes a block of the file carries: each byte is its offset in the file, mod 256
+    private static byte[] content(int pieceIndex, int begin, int length) {
+        byte[] block = new byte[length];
+        for (int i = 0; i < length; i++) block[i] = (byte) (pieceIndex * PIECE_SIZE + begin + i);
+        return block;
+    }
+
+    private PiecePicker.Received deliver(int peerId, PiecePicker.Block block) {
+        byte[] data = content(block.pieceIndex, block.begin, block.length);
+        return picker.blockReceived(peerId, block.pieceIndex, block.begin, data, 0, data.length);
+    }
+
+    @Test
+    void piecesAreSplitIntoBlocksAndReassembled() {
+        AtomicBitfield seeder = remote(3, 0);
+        picker.addBitfield(seeder);
+
+        PiecePicker.Block first = picker.pick(2, seeder);
+        PiecePicker.Block second = picker.pick(2, seeder);
+        PiecePicker.Block third = picker.pick(2, seeder);
+        assertEquals(0, first.pieceIndex);
+        assertEquals(0, first.begin);
+        assertEquals(40, second.begin);
+        assertEquals(80, third.begin);
+        assertEquals(20, third.length);
+        assertEquals(3, picker.reservedCount(2));
+
+        // Blocks may arrive in any order; only the last one completes the piece
+        PiecePicker.Received received = deliver(2, third);
+        assertNull(received.piece);
+        assertNull(deliver(2, first).piece);
+        received = deliver(2, second);
+        assertNotNull(received.piece);
+        assertEquals(PIECE_SIZE, received.pieceLength);
+        assertArrayEquals(content(0, 0, PIECE_SIZE), Arrays.copyOf(received.piece, received.pieceLength));
+        assertEquals(0, picker.reservedCount(2));
+    }
+
+    @Test
+    void aStartedPieceIsFinishedByWhoeverHasIt() {
+        AtomicBitfield a = remote(3, 2);
+        AtomicBitfield b = remote(3, 2);
+        picker.addBitfield(a);
+        picker.addBitfield(b);
+
+        PiecePicker.Block fromA = picker.pick(2, a);
+        PiecePicker.Block fromB = picker.pick(3, b);
+        assertEquals(2, fromA.pieceIndex);
+        assertEquals(2, fromB.pieceIndex);
+        assertEquals(0, fromA.begin);
+        assertEquals(40, fromB.begin);
+        // The last piece is short, so its last block is too
+        assertEquals(10, fromB.length);
+
+        assertNull(deliver(2, fromA).piece);
+        PiecePicker.Received received = deliver(3, fromB);
+        assertEquals(50, received.pieceLength);
+        assertEquals(2, received.sources.size());
+        assertArrayEquals(content(2, 0, 50), Arrays.copyOf(received.piece, received.pieceLength));
+    }
+
+    @Test
+    void unwantedBlocksAreDropped() {
+        AtomicBitfield seeder = remote(3, 0, 1, 2);
+        picker.addBitfield(seeder);
+        PiecePicker.Block block = picker.pick(2, seeder);
+        byte[] data = content(block.pieceIndex, block.begin, block.length);
+
+        // Not block-aligned, wrong length, unknown piece, piece not started
+        assertNull(picker.blockReceived(2, block.pieceIndex, block.begin + 1, data, 0, data.length));
+        assertNull(picker.blockReceived(2, block.pieceIndex, block.begin, data, 0, data.length - 1));
+        assertNull(picker.blockReceived(2, 7, 0, data, 0, data.length));
+        int other = (block.pieceIndex + 1) % 3;
+        assertNull(picker.blockReceived(2, other, 0, data, 0, data.length));
+
+        assertNotNull(deliver(2, block));
+        // A second copy of a block already in is dropped
+        assertNull(deliver(2, block));
+    }
+
+    @Test
+    void releaseAllHandsBlocksBack() {
+        AtomicBitfield a = remote(3, 1);
+        AtomicBitfield b = remote(3, 1);
+        picker.addBitfield(a);
+        picker.addBitfield(b);
+
+        PiecePicker.Block block = picker.pick(2, a);
+        assertEquals(1, picker.totalReserved());
+        picker.releaseAll(2);
+        assertEquals(0, picker.totalReserved());
+
+        // Nothing was received, so the piece goes back to the queue and starts over
+        PiecePicker.Block again = picker.pick(3, b);
+        assertEquals(block.pieceIndex, again.pieceIndex);
+        assertEquals(block.begin, again.begin);
+    }
+
+    @Test
+    void releasedBlocksOfAStartedPieceGoToOthers() {
+        AtomicBitfield a = remote(3, 0);
+        AtomicBitfield b = remote(3, 0);
+        picker.addBitfield(a);
+        picker.addBitfield(b);
+
+        PiecePicker.Block first = picker.pick(2, a);
+        PiecePicker.Block second = picker.pick(2, a);
+        assertNull(deliver(2, first).piece);
+        picker.releaseAll(2);
+
+        // The delivered block is kept; only the released one is handed out again
+        PiecePicker.Block retry = picker.pick(3, b);
+        assertEquals(second.begin, retry.begin);
+    }
+
+    @Test
+    void theRarestPieceIsStartedFirst() {
+        AtomicBitfield a = remote(3, 0, 1, 2);
+        picker.addBitfield(a);
+        picker.addBitfield(remote(3, 1, 2));
+        picker.addBitfield(remote(3, 2));
+        assertEquals(0, picker.pick(2, a).pieceIndex);
+
+        // A HAVE makes piece 0 as common as piece 1; the tie is broken at random, but never
+        // in favour of piece 2, which everyone has
+        picker.releaseAll(2);
+        AtomicBitfield late = remote(3);
+        picker.addBitfield(late);
+        assertTrue(picker.addHave(late, 0));
+        assertFalse(picker.addHave(late, 0));
+        assertNotEquals(2, picker.pick(2, a).pieceIndex);
+    }
+
+    @Test
+    void onlyRegisteredBitfieldsCount() {
+        AtomicBitfield gone = remote(3);
+        picker.addBitfield(gone);
+        picker.removeBitfield(gone);
+        // A HAVE racing with the disconnect still updates the bitfield but not the counts
+        assertTrue(picker.addHave(gone, 1));
+        picker.removeBitfield(gone);
+
+        AtomicBitfield a = remote(3, 1);
+        picker.addBitfield(a);
+        picker.addBitfield(a);
+        picker.removeBitfield(a);
+        assertNull(picker.pick(2, a));
+    }
+
+    @Test
+    void aRemoteWithFewOfTheMissingPiecesIsStillServed() {
+        PeerState big = new PeerState(500, false, 1, PIECE_SIZE, "big", 500L * PIECE_SIZE, dir.toString());
+        try {
+            PiecePicker bigPicker = new PiecePicker(big, BLOCK_SIZE);
+            AtomicBitfield seeder = new AtomicBitfield(500);
+            seeder.setAll();
+            bigPicker.addBitfield(seeder);
+            // Piece 400 is the most common one, so the rarity walk reaches it last
+            AtomicBitfield sparse = remote(500, 400);
+            bigPicker.addBitfield(sparse);
+            bigPicker.addBitfield(remote(500, 400));
+            assertEquals(400, bigPicker.pick(2, sparse).pieceIndex);
+        } finally {
+            big.close();
+        }
+    }
+
+    @Test
+    void endgameRequestsOutstandingBlocksTwiceAndNamesTheHoldersToCancel() {
+        AtomicBitfield a = remote(3, 2);
+        AtomicBitfield b = remote(3, 2);
+        picker.addBitfield(a);
+        picker.addBitfield(b);
+        picker.markOwned(0);
+        picker.markOwned(1);
+
+        PiecePicker.Block first = picker.pick(2, a);
+        PiecePicker.Block second = picker.pick(2, a);
+        assertNull(picker.pick(2, a));
+
+        // Every block is requested, so B gets a duplicate rather than nothing
+        PiecePicker.Block duplicate = picker.pick(3, b);
+        assertNotNull(duplicate);
+        assertEquals(2, duplicate.pieceIndex);
+        assertEquals(3, picker.totalReserved());
+
+        // The first copy in wins; the other holder is the one to send CANCEL
+        PiecePicker.Block won = duplicate.begin == first.begin ? first : second;
+        PiecePicker.Received received = deliver(2, won);
+        assertEquals(List.of(3), received.duplicateHolders);
+        assertEquals(0, picker.reservedCount(3));
+        // The late copy is dropped
+        assertNull(deliver(3, duplicate));
+    }
+
+    @Test
+    void noDuplicatesWhileUnstartedPiecesRemain() {
+        AtomicBitfield a = remote(3, 0);
+        AtomicBitfield b = remote(3, 0);
+        picker.addBitfield(a);
+        picker.addBitfield(b);
+        picker.addBitfield(remote(3, 1));
+        for (int i = 0; i < 3; i++) assertEquals(0, picker.pick(2, a).pieceIndex);
+
+        // Every block of piece 0 is requested, but piece 1 is not started yet, so this is
+        // not endgame and B gets nothing rather than a duplicate
+        assertNull(picker.pick(3, b));
+    }
+
+    @Test
+    void aFailedPieceIsRequestedAgain() {
+        AtomicBitfield seeder = remote(3, 2);
+        picker.addBitfield(seeder);
+        PiecePicker.Block first = picker.pick(2, seeder);
+        PiecePicker.Block second = picker.pick(2, seeder);
+        deliver(2, first);
+        assertNotNull(deliver(2, second).piece);
+        assertNull(picker.pick(2, seeder));
+
+        picker.verifyFailed(2);
+        assertEquals(2, picker.pick(2, seeder).pieceIndex);
+    }
+}